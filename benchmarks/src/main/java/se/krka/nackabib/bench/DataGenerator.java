@@ -0,0 +1,134 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Writes a data directory with a bib.conf and snapshots in the format the library API returns,
+ * for benchmarks and for trying things out without downloading.
+ *
+ * Snapshots are four hours apart. Every account has the same number of loans in each snapshot,
+ * and returns one of them and borrows a new one every sixth snapshot, so the history grows with
+ * the number of snapshots and consecutive snapshots are often identical, like the real data.
+ */
+public class DataGenerator {
+
+  private static final LocalDateTime START = LocalDateTime.of(2018, 1, 1, 0, 0);
+  private static final DateTimeFormatter SNAPSHOT_NAME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
+  private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'00:00:00");
+  private static final String[] FIRST_NAMES = {"Anna", "Bo-Erik", "Cecilia", "David", "Eva", "Fredrik", "G\u00f6ran"};
+  private static final String[] LAST_NAMES = {"Svensson", "Ek", "Lind", "Str\u00f6m", "Berg", "Holm", "\u00c5kesson"};
+  private static final int SNAPSHOTS_PER_RETURN = 6;
+  private static final int RESERVATIONS = 3;
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length != 4) {
+      System.err.println("Usage: DataGenerator <data dir> <accounts> <snapshots> <loans per snapshot>");
+      System.exit(1);
+      return;
+    }
+    generate(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+  }
+
+  public static void generate(final File baseDir, final int accounts, final int snapshots, final int loans)
+      throws IOException {
+    writeConfig(baseDir, accounts, "");
+    for (int i = 0; i < snapshots; i++) {
+      final File snapshotDir = new File(baseDir, SNAPSHOT_NAME.format(START.plusHours(4L * i)));
+      for (int account = 0; account < accounts; account++) {
+        writeAccount(new File(snapshotDir, "user" + account), account, i, loans);
+      }
+    }
+  }
+
+  /**
+   * Writes a bib.conf with the accounts user0, user1... with the passwords password0, password1...
+   *
+   * @param extra more configuration to add after the credentials
+   */
+  public static void writeConfig(final File baseDir, final int accounts, final String extra) throws IOException {
+    FileUtils.forceMkdir(baseDir);
+    final StringBuilder config = new StringBuilder("credentials: [\n");
+    for (int account = 0; account < accounts; account++) {
+      config.append("  {username: user").append(account)
+          .append(", password: password").append(account).append("}\n");
+    }
+    config.append("]\n").append(extra);
+    FileUtils.write(new File(baseDir, "bib.conf"), config, Charsets.UTF_8);
+  }
+
+  private static void writeAccount(final File dir, final int account, final int snapshot, final int loans)
+      throws IOException {
+    FileUtils.forceMkdir(dir);
+    write(dir, "settings", new JSONObject()
+        .put("username", "user" + account)
+        .put("urltoken", "token" + account)
+        .toString(2));
+    write(dir, "cards", cards(account));
+    write(dir, "loans", loans(account, snapshot, loans));
+    write(dir, "reservations", reservations(account, snapshot));
+    write(dir, "debts", "[]");
+    write(dir, "catalogs", "[]");
+    write(dir, "libraries", "[]");
+  }
+
+  public static String cards(final int account) {
+    final String displayName = FIRST_NAMES[account % FIRST_NAMES.length] + " "
+        + LAST_NAMES[(account / FIRST_NAMES.length) % LAST_NAMES.length];
+    return new JSONArray().put(new JSONObject()
+        .put("displayName", displayName)
+        .put("token", new JSONObject().put("userId", "id" + account)))
+        .toString(2);
+  }
+
+  /**
+   * @return the loans of an account at the snapshot with the given number
+   */
+  public static String loans(final int account, final int snapshot, final int loans) {
+    final JSONArray array = new JSONArray();
+    final int firstLoan = snapshot / SNAPSHOTS_PER_RETURN;
+    for (int loan = firstLoan; loan < firstLoan + loans; loan++) {
+      // Borrowed on the day the previous loan was returned, for four weeks
+      final LocalDateTime borrowed = START.plusHours(4L * SNAPSHOTS_PER_RETURN * Math.max(0, loan - loans));
+      array.put(new JSONObject()
+          .put("id", account + "-" + loan)
+          .put("workAuthor", "F\u00f6rfattare " + (loan % 97))
+          .put("workTitle", (loan % 10 == 0 ? "Titel & undertitel " : "En titel ") + loan)
+          .put("returnDate", DATE.format(borrowed.plusDays(28)))
+          .put("isRenewable", loan % 3 != 0));
+    }
+    return array.toString(2);
+  }
+
+  /**
+   * @return the reservations of an account at the snapshot with the given number
+   */
+  public static String reservations(final int account, final int snapshot) {
+    // Changes when a loan does, so that the snapshots in between are identical
+    final int period = snapshot / SNAPSHOTS_PER_RETURN;
+    final LocalDateTime lastFetch = START.plusHours(4L * SNAPSHOTS_PER_RETURN * period).plusDays(7);
+    final JSONArray array = new JSONArray();
+    for (int reservation = 0; reservation < RESERVATIONS; reservation++) {
+      final boolean fetchable = reservation == 0;
+      array.put(new JSONObject()
+          .put("id", "r" + account + "-" + reservation)
+          .put("workAuthor", "Reserverad f\u00f6rfattare " + reservation)
+          .put("workTitle", "Reserverad titel " + reservation)
+          .put("reservedFrom", DATE.format(START))
+          .put("status", fetchable ? "fetchable" : "active")
+          .put("lastFetchDate", DATE.format(lastFetch).replace("T00:00:00", "T23:59:59"))
+          .put("queueNumber", fetchable ? 0 : reservation * 3));
+    }
+    return array.toString(2);
+  }
+
+  private static void write(final File dir, final String resource, final String json) throws IOException {
+    FileUtils.write(new File(dir, resource), json, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,74 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.Dedup;
+import se.krka.nackabib.HashCache;
+
+/**
+ * Dedup of generated data that has already been deduped once, so nothing is deleted.
+ * With the hash cache, as on every run, and without it, when every snapshot has to be hashed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DedupBenchmark {
+
+  @Param({"4"})
+  public int accounts;
+
+  @Param({"100", "1000"})
+  public int snapshots;
+
+  @Param({"20"})
+  public int loans;
+
+  private File baseDir;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    // Dedup logs every run
+    System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+    baseDir = java.nio.file.Files.createTempDirectory("dedup-benchmark").toFile();
+    DataGenerator.generate(baseDir, accounts, snapshots, loans);
+    Dedup.dedup(baseDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDir);
+  }
+
+  @Benchmark
+  public void cachedHashes() throws IOException {
+    Dedup.dedup(baseDir);
+  }
+
+  @Benchmark
+  public void noCache() throws IOException {
+    final HashCache cache = HashCache.load(baseDir);
+    cache.clear();
+    cache.save();
+    Dedup.dedup(baseDir);
+  }
+}
@@ -0,0 +1,108 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.Downloader;
+import se.krka.nackabib.UserConfig;
+
+/**
+ * Downloading every account from a {@link FakeLibrary}, with the clients kept between downloads like the daemon,
+ * so only the first download logs in. The time of a download is mostly decided by the latency,
+ * the parallelism and how often the API has to be asked again.
+ *
+ * A failed download does not stop the benchmark, the failures and retries are printed after each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloaderBenchmark {
+
+  @Param({"10", "200"})
+  public int accounts;
+
+  @Param({"20"})
+  public int loans;
+
+  @Param({"0", "20"})
+  public int latencyMillis;
+
+  @Param({"0"})
+  public double errorRate;
+
+  @Param({"0", "0.2"})
+  public double cacheWorkingRate;
+
+  @Param({"16"})
+  public int parallelism;
+
+  private PrintStream log;
+  private FakeLibrary library;
+  private File baseDir;
+  private Downloader.Clients clients;
+  private int downloads;
+  private int failures;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    // Every request is logged
+    log = System.out;
+    System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+    library = new FakeLibrary(accounts, loans, Duration.ofMillis(latencyMillis), errorRate, cacheWorkingRate);
+    library.start(0);
+    baseDir = java.nio.file.Files.createTempDirectory("downloader-benchmark").toFile();
+    DataGenerator.writeConfig(baseDir, accounts, library.getConfig()
+        + "download {\n"
+        + "  parallelism: " + parallelism + "\n"
+        + "  retry {\n"
+        + "    initialDelay: 10ms\n"
+        + "    maxDelay: 100ms\n"
+        + "  }\n"
+        + "}\n");
+    clients = new Downloader.Clients(baseDir, new UserConfig(baseDir));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    clients.close();
+    library.stop();
+    FileUtils.deleteDirectory(baseDir);
+    log.println();
+    log.println(downloads + " downloads, " + failures + " failed, " + library.getRequests() + " requests, "
+        + library.getLogins() + " logins, " + library.getCacheWorkingResponses() + " cacheState working, "
+        + library.getErrors() + " errors");
+  }
+
+  @Benchmark
+  public boolean download() throws Exception {
+    library.nextSnapshot();
+    downloads++;
+    try {
+      Downloader.download(baseDir, clients);
+      return true;
+    } catch (RuntimeException e) {
+      failures++;
+      return false;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process imitation of the library, for downloading without the real one.
+ * It has the accounts from {@link DataGenerator#writeConfig} and serves the same data as DataGenerator.
+ *
+ * Like the real library, the login page redirects to a form with a UrlToken, a successful login sets
+ * the .AspNetCore.Cookies cookie and redirects back, API requests without a session are redirected to the
+ * login page and the API sometimes answers {"cacheState":"working"} until it is done.
+ * Every request is delayed by the latency, and a share of the API requests fail with a 500.
+ */
+public class FakeLibrary {
+
+  private static final String SESSION_COOKIE = ".AspNetCore.Cookies";
+  private static final byte[] CACHE_WORKING = "{\"cacheState\":\"working\"}".getBytes(Charsets.UTF_8);
+
+  private final int accounts;
+  private final int loans;
+  private final Duration latency;
+  private final double errorRate;
+  private final double cacheWorkingRate;
+
+  private final Set<String> urlTokens = ConcurrentHashMap.newKeySet();
+  // Account number by session cookie
+  private final Map<String, Integer> sessions = new ConcurrentHashMap<>();
+  private final AtomicInteger snapshot = new AtomicInteger();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong logins = new AtomicLong();
+  private final AtomicLong cacheWorkingResponses = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  private HttpServer httpServer;
+  private ExecutorService executor;
+
+  /**
+   * @param loans            loans per account, which decides the size of the responses
+   * @param errorRate        share of API requests that fail, between 0 and 1
+   * @param cacheWorkingRate share of API requests that are answered with cacheState working, between 0 and 1
+   */
+  public FakeLibrary(final int accounts, final int loans, final Duration latency, final double errorRate,
+                     final double cacheWorkingRate) {
+    this.accounts = accounts;
+    this.loans = loans;
+    this.latency = latency;
+    this.errorRate = errorRate;
+    this.cacheWorkingRate = cacheWorkingRate;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: FakeLibrary <port> <accounts> [loans per account] [latency ms] [error rate] [cacheState working rate]");
+      System.exit(1);
+      return;
+    }
+    final FakeLibrary library = new FakeLibrary(
+        Integer.parseInt(args[1]),
+        args.length > 2 ? Integer.parseInt(args[2]) : 20,
+        Duration.ofMillis(args.length > 3 ? Long.parseLong(args[3]) : 0),
+        args.length > 4 ? Double.parseDouble(args[4]) : 0,
+        args.length > 5 ? Double.parseDouble(args[5]) : 0);
+    library.start(Integer.parseInt(args[0]));
+    System.out.println("Add this to bib.conf, with the credentials from DataGenerator.writeConfig:");
+    System.out.println(library.getConfig());
+  }
+
+  /**
+   * @param port the port to listen on, or 0 for any free port
+   */
+  public void start(final int port) throws IOException {
+    httpServer = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+    // Requests mostly sleep, so don't limit the number of threads
+    executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setNameFormat("fake-library-%d")
+        .setDaemon(true)
+        .build());
+    httpServer.createContext("/", this::handle);
+    httpServer.setExecutor(executor);
+    httpServer.start();
+  }
+
+  public void stop() {
+    httpServer.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the endpoints block for bib.conf that downloads from this library
+   */
+  public String getConfig() {
+    final String url = "http://localhost:" + httpServer.getAddress().getPort();
+    return "endpoints {\n"
+        + "  api: \"" + url + "/api/\"\n"
+        + "  loginPage: \"" + url + "/login\"\n"
+        + "  auth: \"" + url + "/auth/\"\n"
+        + "  returnUrl: \"" + url + "/\"\n"
+        + "}\n";
+  }
+
+  /**
+   * Moves on to the data of the next snapshot, where the loans have sometimes changed.
+   */
+  public void nextSnapshot() {
+    snapshot.incrementAndGet();
+  }
+
+  /**
+   * Forgets all sessions, so that every account has to log in again.
+   */
+  public void expireSessions() {
+    sessions.clear();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getLogins() {
+    return logins.get();
+  }
+
+  public long getCacheWorkingResponses() {
+    return cacheWorkingResponses.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    try {
+      requests.incrementAndGet();
+      // Read to the end even when not needed, or the JDK server closes the connection after responses without a body
+      final byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+      if (!latency.isZero()) {
+        Thread.sleep(latency.toMillis());
+      }
+      final String path = exchange.getRequestURI().getPath();
+      if (path.startsWith("/api/")) {
+        handleApi(exchange, path.substring("/api/".length()));
+      } else if (path.equals("/login")) {
+        // The real one goes through a couple of redirects on the way to the form
+        redirect(exchange, "/auth/login?ReturnUrl=" + URLEncoder.encode("/", "UTF-8"));
+      } else if (path.equals("/auth/login")) {
+        final String urlToken = UUID.randomUUID().toString();
+        urlTokens.add(urlToken);
+        send(exchange, 200, "text/html", ("<html><body><form method=\"post\" action=\"/auth/\">"
+            + "<input type=\"hidden\" id=\"UrlToken\" value=\"" + urlToken + "\">"
+            + "</form></body></html>").getBytes(Charsets.UTF_8));
+      } else if (path.equals("/auth/") && exchange.getRequestMethod().equals("POST")) {
+        handleLogin(exchange, body);
+      } else if (path.equals("/")) {
+        send(exchange, 200, "text/html", "<html><body>Mina sidor</body></html>".getBytes(Charsets.UTF_8));
+      } else {
+        send(exchange, 404, "text/plain", "Not found".getBytes(Charsets.UTF_8));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleLogin(final HttpExchange exchange, final byte[] body) throws IOException {
+    final Map<String, String> form = parseForm(new String(body, Charsets.UTF_8));
+    final String username = form.getOrDefault("Username", "");
+    final int account = username.startsWith("user") ? parseInt(username.substring("user".length())) : -1;
+    if (account < 0 || account >= accounts
+        || !("password" + account).equals(form.get("Password"))
+        || !urlTokens.remove(form.getOrDefault("UrlToken", ""))) {
+      // Back to the form, without a cookie
+      redirect(exchange, "/auth/login");
+      return;
+    }
+    logins.incrementAndGet();
+    final String session = UUID.randomUUID().toString();
+    sessions.put(session, account);
+    exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; path=/; httponly");
+    redirect(exchange, form.getOrDefault("ReturnUrl", "/"));
+  }
+
+  private void handleApi(final HttpExchange exchange, final String resource) throws IOException {
+    final Integer account = getSessionAccount(exchange);
+    if (account == null) {
+      redirect(exchange, "/login?ReturnUrl=" + URLEncoder.encode(exchange.getRequestURI().getPath(), "UTF-8"));
+      return;
+    }
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (random.nextDouble() < errorRate) {
+      errors.incrementAndGet();
+      send(exchange, 500, "text/plain", "Internal Server Error".getBytes(Charsets.UTF_8));
+      return;
+    }
+    if (random.nextDouble() < cacheWorkingRate) {
+      cacheWorkingResponses.incrementAndGet();
+      send(exchange, 200, "application/json", CACHE_WORKING);
+      return;
+    }
+    final String body = getResource(account, resource);
+    if (body == null) {
+      send(exchange, 404, "text/plain", "Not found".getBytes(Charsets.UTF_8));
+      return;
+    }
+    final byte[] content = body.getBytes(Charsets.UTF_8);
+    final String etag = "\"" + Hashing.sha1().hashBytes(content).toString() + "\"";
+    exchange.getResponseHeaders().set("ETag", etag);
+    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    send(exchange, 200, "application/json", content);
+  }
+
+  private String getResource(final int account, final String resource) {
+    final int snapshot = this.snapshot.get();
+    switch (resource) {
+      case "cards":
+        return DataGenerator.cards(account);
+      case "loans":
+        return DataGenerator.loans(account, snapshot, loans);
+      case "reservations":
+        return DataGenerator.reservations(account, snapshot);
+      case "settings":
+        // The id changes on every request, which is why the Downloader removes it
+        return "{\"id\":\"" + UUID.randomUUID() + "\",\"language\":\"sv\"}";
+      case "debts":
+      case "catalogs":
+      case "catalogs/libraries":
+        return "[]";
+      default:
+        return null;
+    }
+  }
+
+  private Integer getSessionAccount(final HttpExchange exchange) {
+    final String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+    if (cookies == null) {
+      return null;
+    }
+    for (String cookie : Splitter.on(';').trimResults().split(cookies)) {
+      if (cookie.startsWith(SESSION_COOKIE + "=")) {
+        return sessions.get(cookie.substring(SESSION_COOKIE.length() + 1));
+      }
+    }
+    return null;
+  }
+
+  private static Map<String, String> parseForm(final String body) throws IOException {
+    final ImmutableMap.Builder<String, String> form = ImmutableMap.builder();
+    for (String pair : Splitter.on('&').omitEmptyStrings().split(body)) {
+      final int equals = pair.indexOf('=');
+      if (equals > 0) {
+        form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return form.build();
+  }
+
+  private static int parseInt(final String s) {
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void redirect(final HttpExchange exchange, final String location) throws IOException {
+    exchange.getResponseHeaders().set("Location", location);
+    exchange.sendResponseHeaders(302, -1);
+  }
+
+  private static void send(final HttpExchange exchange, final int status, final String contentType,
+                           final byte[] content) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+    exchange.sendResponseHeaders(status, content.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package se.krka.nackabib.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.Grouper;
+
+/**
+ * Grouping a list that is sorted by account, the way Render groups loans and reservations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GrouperBenchmark {
+
+  @Param({"100", "10000"})
+  public int size;
+
+  @Param({"4"})
+  public int accounts;
+
+  private List<String[]> rows;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    rows = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      rows.add(new String[] {"user" + (i * accounts / size), "Titel " + i});
+    }
+  }
+
+  @Benchmark
+  public List<Grouper.Group<String[], String>> groupBy() {
+    return Grouper.groupBy(rows, row -> row[0]);
+  }
+}
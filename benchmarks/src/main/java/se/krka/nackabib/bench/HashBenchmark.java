@@ -0,0 +1,108 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.TreeHasher;
+
+/**
+ * Compares the fork-join tree hasher with the sequential Guava based hashing Dedup used before,
+ * on a cold hash cache, i.e. hashing every snapshot directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+
+  @Param({"100", "1000"})
+  public int snapshots;
+
+  @Param({"4"})
+  public int users;
+
+  @Param({"2048", "131072"})
+  public int fileSize;
+
+  private File baseDir;
+  private List<File> dirs;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    baseDir = java.nio.file.Files.createTempDirectory("hash-benchmark").toFile();
+    final Random random = new Random(0);
+    final String[] resources = {"cards", "loans", "debts", "catalogs", "reservations", "settings", "libraries"};
+    for (int i = 0; i < snapshots; i++) {
+      for (int user = 0; user < users; user++) {
+        final File userDir = new File(new File(baseDir, String.format("snapshot-%05d", i)), "user" + user);
+        FileUtils.forceMkdir(userDir);
+        for (String resource : resources) {
+          final byte[] data = new byte[random.nextInt(fileSize) + 1];
+          random.nextBytes(data);
+          FileUtils.writeByteArrayToFile(new File(userDir, resource), data);
+        }
+      }
+    }
+    dirs = Arrays.stream(baseDir.listFiles()).sorted().collect(Collectors.toList());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDir);
+  }
+
+  @Benchmark
+  public List<String> sequentialGuava() throws IOException {
+    return dirs.stream().map(HashBenchmark::guavaHash).collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<String> treeHasher() throws IOException {
+    return TreeHasher.hashAll(dirs);
+  }
+
+  // The implementation Dedup used before TreeHasher
+  private static String guavaHash(final File file) {
+    try {
+      if (file.isDirectory()) {
+        final Hasher hasher = Hashing.sha1().newHasher();
+        final List<File> sortedChildren = Arrays.stream(file.listFiles())
+            .sorted(Comparator.comparing(File::getName))
+            .collect(Collectors.toList());
+        for (File child : sortedChildren) {
+          hasher.putString(guavaHash(child), StandardCharsets.US_ASCII);
+        }
+        return hasher.hash().toString();
+      } else {
+        return Files.hash(file, Hashing.sha1()).toString();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.DataDir;
+import se.krka.nackabib.Render;
+import se.krka.nackabib.UserConfig;
+
+/**
+ * Reading generated data and writing the page. A cold collectData has no history index and reads
+ * every snapshot, like the first run. A warm one reuses the Render of the previous call, like the daemon
+ * when nothing new has been downloaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+  @Param({"2", "8"})
+  public int accounts;
+
+  @Param({"100", "1000"})
+  public int snapshots;
+
+  @Param({"20"})
+  public int loans;
+
+  private File baseDir;
+  private File indexFile;
+  private File page;
+  private UserConfig config;
+  private Render render;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    // Rendering logs every step
+    System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+    baseDir = java.nio.file.Files.createTempDirectory("render-benchmark").toFile();
+    DataGenerator.generate(baseDir, accounts, snapshots, loans);
+    indexFile = new File(DataDir.getStateDir(baseDir), "history-index.json");
+    page = new File(baseDir, "index.html");
+    config = new UserConfig(baseDir);
+    render = new Render(config);
+    render.collectData(baseDir);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDir);
+  }
+
+  @Benchmark
+  public Render collectDataCold() throws Exception {
+    FileUtils.deleteQuietly(indexFile);
+    final Render render = new Render(config);
+    render.collectData(baseDir);
+    return render;
+  }
+
+  @Benchmark
+  public Render collectDataWarm() throws Exception {
+    render.collectData(baseDir);
+    return render;
+  }
+
+  @Benchmark
+  public void toHtml() throws Exception {
+    render.toHtml(page);
+  }
+}
@@ -0,0 +1,94 @@
+package se.krka.nackabib.bench;
+
+import com.google.common.io.CharStreams;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.HtmlWriter;
+import se.krka.nackabib.Template;
+
+/**
+ * Compares writing loan rows with the templates Render uses against the StringBuilder concatenation
+ * it used before, which built the whole page in memory and had no escaping.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateBenchmark {
+
+  @Param({"100", "10000"})
+  public int rows;
+
+  private Template loanRow;
+  private String[] shortNames;
+  private String[] dates;
+  private String[] authors;
+  private String[] titles;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    loanRow = Template.load("templates.html").get("loan-row");
+    final Random random = new Random(0);
+    shortNames = new String[rows];
+    dates = new String[rows];
+    authors = new String[rows];
+    titles = new String[rows];
+    for (int i = 0; i < rows; i++) {
+      shortNames[i] = random.nextBoolean() ? "AS" : "BEE";
+      dates[i] = String.format("2018-%02d-%02d", 1 + random.nextInt(12), 1 + random.nextInt(28));
+      authors[i] = "F\u00f6rfattare " + random.nextInt(1000);
+      // Some titles need escaping
+      titles[i] = (i % 10 == 0 ? "Titel & undertitel " : "En titel ") + random.nextInt(1000);
+    }
+  }
+
+  @Benchmark
+  public void concatenation() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < rows; i++) {
+      sb.append("<tr>");
+      sb.append("<td>");
+      sb.append(shortNames[i]);
+      sb.append("</td>");
+      sb.append("<td>");
+      sb.append(span(dates[i], "date"));
+      sb.append("</td>");
+      sb.append("<td>");
+      sb.append(authors[i]);
+      sb.append("</td>");
+      sb.append("<td>");
+      sb.append(titles[i]);
+      sb.append("</td>");
+      sb.append("</tr>\n");
+    }
+    CharStreams.nullWriter().write(sb.toString());
+  }
+
+  @Benchmark
+  public void template() throws IOException {
+    try (HtmlWriter out = new HtmlWriter(CharStreams.nullWriter())) {
+      for (int i = 0; i < rows; i++) {
+        loanRow.render(out, shortNames[i], "date", dates[i], authors[i], titles[i]);
+      }
+    }
+  }
+
+  private static String span(final String s, final String clazz) {
+    return "<span class=\"" + clazz + "\">" + s + "    </span>";
+  }
+}
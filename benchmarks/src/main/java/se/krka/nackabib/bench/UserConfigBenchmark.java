@@ -0,0 +1,66 @@
+package se.krka.nackabib.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.krka.nackabib.UserConfig;
+
+/**
+ * Parsing bib.conf and reading the settings a run uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserConfigBenchmark {
+
+  @Param({"1", "20"})
+  public int accounts;
+
+  private File baseDir;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    baseDir = java.nio.file.Files.createTempDirectory("config-benchmark").toFile();
+    DataGenerator.writeConfig(baseDir, accounts, ""
+        + "download {\n"
+        + "  parallelism: 4\n"
+        + "  retry {\n"
+        + "    maxDelay: 30s\n"
+        + "  }\n"
+        + "}\n"
+        + "daemon {\n"
+        + "  interval: 225m\n"
+        + "}\n");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDir);
+  }
+
+  @Benchmark
+  public Object parse() {
+    final UserConfig config = new UserConfig(baseDir);
+    config.getParallelism();
+    config.getDaemonInterval();
+    config.newRetryPolicy();
+    return config.getUsersByUsername();
+  }
+}
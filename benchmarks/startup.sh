@@ -0,0 +1,44 @@
+#!/bin/bash
+# Measures the wall time of starting the jar, which JMH can't do.
+# Runs a copy of a data directory, so that the real data is not touched:
+#   noop  - the data is up to date, nothing is done
+#   full  - reads the data and renders the page, without downloading
+# Make sure the data is up to date, or the full run will download.
+# With a class data sharing archive from cds.sh, both are also measured with it.
+#
+# Usage: benchmarks/startup.sh <data dir> [runs]
+set -e
+if [ -z "$1" ] ; then
+  echo "Usage: $0 <data dir> [runs]" >&2
+  exit 1
+fi
+DATA=$(cd "$1" && pwd)
+RUNS=${2:-10}
+cd $(dirname $0)/..
+JAR=$(ls target/nackabib-*-jar-with-dependencies.jar)
+
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+cp -r "$DATA" "$TMP/data"
+
+# Prints the median wall time in milliseconds
+measure() {
+  for i in $(seq $RUNS) ; do
+    start=$(date +%s%N)
+    java "$@" > /dev/null
+    end=$(date +%s%N)
+    echo $(( (end - start) / 1000000 ))
+  done | sort -n | awk '{ t[NR] = $1 } END { print t[int((NR + 1) / 2)] }'
+}
+
+run() {
+  local name=$1
+  shift
+  echo "$name noop: $(measure "$@" -jar $JAR -d "$TMP/data") ms"
+  echo "$name full: $(measure "$@" -jar $JAR -d "$TMP/data" -r "$TMP/index.html" --force-render) ms"
+}
+
+run plain -Xshare:auto
+if [ -f nackabib.jsa ] ; then
+  run cds -XX:SharedArchiveFile=nackabib.jsa
+fi
@@ -0,0 +1,11 @@
+#!/bin/bash
+# Creates a class data sharing archive that run.sh uses to start faster.
+# Needs Java 13 or later. Does a normal run that always renders, so that
+# the archive has the classes of a full run. Run it again after rebuilding the jar.
+set -e
+DIR=$(dirname $0)
+cd $DIR
+rm -f nackabib.jsa
+# Classes from old jars can't be archived, there is no need to list them all
+java -XX:ArchiveClassesAtExit=nackabib.jsa -Xlog:cds=error -jar target/nackabib-*-jar-with-dependencies.jar \
+  -d data -r index.html --changed-file upload.pending --force-render "$@"
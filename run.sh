@@ -4,14 +4,21 @@ DIR=$(dirname $0)
 cd $DIR
 rm -f last_run.out last_run.err
 
+# Created by cds.sh, older Java versions don't know the option
+JAVA_OPTS=""
+if [ -f nackabib.jsa ] ; then
+  JAVA_OPTS="-XX:SharedArchiveFile=nackabib.jsa"
+fi
+
 # If the data has been updated within the last 4 hours, exit early
 if [ "x" != "x$(find data/* -cmin -240)" ] ; then
   echo "Data updated recently, skipping run" >> last_run.out
 else
-  java -jar target/nackabib-*-jar-with-dependencies.jar -d data -r index.html "$@" >> last_run.out 2>> last_run.err
+  java $JAVA_OPTS -jar target/nackabib-*-jar-with-dependencies.jar -d data -r index.html --changed-file upload.pending "$@" >> last_run.out 2>> last_run.err
 fi
 
-if [ -f upload.sh ] ; then
+# Only upload when the page has changed, the marker is kept until an upload succeeds
+if [ -f upload.sh ] && [ -f upload.pending ] ; then
   bash upload.sh >> last_run.out 2>> last_run.err
+  rm -f upload.pending
 fi
-
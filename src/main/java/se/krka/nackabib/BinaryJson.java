@@ -0,0 +1,211 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compact binary encoding of JSON resources, read by {@link BinaryJsonReader}.
+ *
+ * <pre>
+ * file   := magic "NBJ\1", varint string count, strings, value
+ * string := varint byte length, UTF-8 bytes
+ * value  := 0 (null) | 1 (false) | 2 (true)
+ *         | 3 zigzag varint (integer)
+ *         | 4 varint string index (any other number, as written)
+ *         | 5 varint string index
+ *         | 6 varint count, count * value (array)
+ *         | 7 varint count, count * (varint string index of name, value) (object)
+ * </pre>
+ * Names and strings are only stored once in the string table, which is what makes repeated
+ * keys, authors and library names cheap.
+ *
+ * Since the string table and the counts come before the values, encoding reads the JSON twice: first to
+ * collect them, then to write the values straight to the output. Only the strings and one count per array
+ * and object are kept in memory, not the encoded document.
+ */
+public class BinaryJson {
+
+  static final byte[] MAGIC = {'N', 'B', 'J', 1};
+
+  static final int TAG_NULL = 0;
+  static final int TAG_FALSE = 1;
+  static final int TAG_TRUE = 2;
+  static final int TAG_INTEGER = 3;
+  static final int TAG_NUMBER = 4;
+  static final int TAG_STRING = 5;
+  static final int TAG_ARRAY = 6;
+  static final int TAG_OBJECT = 7;
+
+  // Integers without leading zeros or negative zero, so that they survive a round trip through a long
+  private static final Pattern INTEGER_LITERAL = Pattern.compile("0|-?[1-9][0-9]{0,18}");
+
+  private final Map<String, Integer> strings = Maps.newLinkedHashMap();
+  // Number of values in each array and object, in the order they start
+  private int[] counts = new int[16];
+  private int containers;
+  // True in the first pass, which only counts
+  private boolean counting = true;
+  private OutputStream body = ByteStreams.nullOutputStream();
+
+  private BinaryJson() {
+  }
+
+  static boolean isMagic(final ByteBuffer header) {
+    if (header.remaining() < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (header.get(header.position() + i) != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encodes the first value of the source, which is read twice. The output stream is not closed.
+   */
+  public static void encode(final Source source, final OutputStream out) throws IOException {
+    final BinaryJson encoder = new BinaryJson();
+    // Only collects the strings and counts, the values are written to nowhere
+    try (JsonReader in = source.open()) {
+      encoder.writeValue(in);
+    }
+
+    out.write(MAGIC);
+    writeVarint(out, encoder.strings.size());
+    for (String s : encoder.strings.keySet()) {
+      final byte[] bytes = s.getBytes(Charsets.UTF_8);
+      writeVarint(out, bytes.length);
+      out.write(bytes);
+    }
+    encoder.counting = false;
+    encoder.body = out;
+    encoder.containers = 0;
+    try (JsonReader in = source.open()) {
+      encoder.writeValue(in);
+    }
+  }
+
+  private void writeValue(final JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case NULL:
+        in.nextNull();
+        body.write(TAG_NULL);
+        break;
+      case BOOLEAN:
+        body.write(in.nextBoolean() ? TAG_TRUE : TAG_FALSE);
+        break;
+      case NUMBER: {
+        final String literal = in.nextString();
+        final Long value = parseLong(literal);
+        if (value != null) {
+          body.write(TAG_INTEGER);
+          writeVarint(body, (value << 1) ^ (value >> 63));
+        } else {
+          body.write(TAG_NUMBER);
+          writeString(literal);
+        }
+        break;
+      }
+      case STRING:
+        body.write(TAG_STRING);
+        writeString(in.nextString());
+        break;
+      case BEGIN_ARRAY: {
+        final int container = startContainer(TAG_ARRAY);
+        int count = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+          writeValue(in);
+          count++;
+        }
+        in.endArray();
+        endContainer(container, count);
+        break;
+      }
+      case BEGIN_OBJECT: {
+        final int container = startContainer(TAG_OBJECT);
+        int count = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+          writeString(in.nextName());
+          writeValue(in);
+          count++;
+        }
+        in.endObject();
+        endContainer(container, count);
+        break;
+      }
+      default:
+        throw new IOException("Expected a value but was " + in.peek());
+    }
+  }
+
+  /**
+   * @return the value of an integer literal, or null if it is not one or does not fit in a long
+   */
+  private static Long parseLong(final String literal) {
+    if (!INTEGER_LITERAL.matcher(literal).matches()) {
+      return null;
+    }
+    try {
+      return Long.parseLong(literal);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the tag and the count of an array or object, which is 0 in the first pass and the one it counted
+   * in the second.
+   */
+  private int startContainer(final int type) throws IOException {
+    final int container = containers++;
+    if (container == counts.length) {
+      counts = Arrays.copyOf(counts, counts.length * 2);
+    }
+    body.write(type);
+    writeVarint(body, counts[container]);
+    return container;
+  }
+
+  private void endContainer(final int container, final int count) throws IOException {
+    if (counting) {
+      counts[container] = count;
+    } else if (counts[container] != count) {
+      throw new IOException("The JSON changed between the two passes of encoding it");
+    }
+  }
+
+  private void writeString(final String s) throws IOException {
+    Integer index = strings.get(s);
+    if (index == null) {
+      index = strings.size();
+      strings.put(s, index);
+    }
+    writeVarint(body, index);
+  }
+
+  /**
+   * The JSON to encode, which can be opened more than once.
+   */
+  public interface Source {
+    JsonReader open() throws IOException;
+  }
+
+  static void writeVarint(final OutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}
@@ -0,0 +1,272 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * {@link JsonReader} for the {@link BinaryJson} format. Strings in the string table are only decoded
+ * when they are read, and at most once.
+ */
+public class BinaryJsonReader implements JsonReader {
+
+  private final ByteBuffer buffer;
+  private final int[] stringOffsets;
+  private final int[] stringLengths;
+  private final String[] strings;
+
+  // Open arrays and objects, with the number of values left in each
+  private boolean[] isObject = new boolean[16];
+  private int[] remaining = new int[16];
+  private boolean[] expectingName = new boolean[16];
+  private int stackSize;
+  private boolean rootRead;
+
+  private Token peeked;
+  private int tag;
+
+  /**
+   * @param buffer the contents after the magic header
+   */
+  public BinaryJsonReader(final ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    final int count = readCount();
+    stringOffsets = new int[count];
+    stringLengths = new int[count];
+    strings = new String[count];
+    for (int i = 0; i < count; i++) {
+      final int length = readCount();
+      stringOffsets[i] = buffer.position();
+      stringLengths[i] = length;
+      if (length > buffer.remaining()) {
+        throw new IOException("Truncated string table");
+      }
+      buffer.position(buffer.position() + length);
+    }
+  }
+
+  /**
+   * Reads the rest of the channel, which must be positioned right after the magic header.
+   */
+  static BinaryJsonReader open(final FileChannel channel) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - channel.position()));
+    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      // keep reading
+    }
+    buffer.flip();
+    return new BinaryJsonReader(buffer);
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public Token peek() throws IOException {
+    if (peeked != null) {
+      return peeked;
+    }
+    if (stackSize == 0) {
+      if (rootRead) {
+        return peeked = Token.END_DOCUMENT;
+      }
+      return peeked = readTag();
+    }
+    final int top = stackSize - 1;
+    if (remaining[top] == 0) {
+      return peeked = isObject[top] ? Token.END_OBJECT : Token.END_ARRAY;
+    }
+    if (isObject[top] && expectingName[top]) {
+      return peeked = Token.NAME;
+    }
+    return peeked = readTag();
+  }
+
+  @Override
+  public boolean hasNext() throws IOException {
+    final Token token = peek();
+    return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+  }
+
+  @Override
+  public void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+    valueRead();
+    push(false, readCount());
+  }
+
+  @Override
+  public void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+    stackSize--;
+  }
+
+  @Override
+  public void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+    valueRead();
+    push(true, readCount());
+  }
+
+  @Override
+  public void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+    stackSize--;
+  }
+
+  @Override
+  public String nextName() throws IOException {
+    expect(Token.NAME);
+    expectingName[stackSize - 1] = false;
+    return getString(readCount());
+  }
+
+  @Override
+  public String nextString() throws IOException {
+    final Token token = peek();
+    if (token != Token.STRING && token != Token.NUMBER) {
+      throw new IOException("Expected a string but was " + token);
+    }
+    peeked = null;
+    valueRead();
+    if (tag == BinaryJson.TAG_INTEGER) {
+      return Long.toString(readInteger());
+    }
+    return getString(readCount());
+  }
+
+  @Override
+  public boolean nextBoolean() throws IOException {
+    expect(Token.BOOLEAN);
+    valueRead();
+    return tag == BinaryJson.TAG_TRUE;
+  }
+
+  @Override
+  public int nextInt() throws IOException {
+    expect(Token.NUMBER);
+    valueRead();
+    final long value = tag == BinaryJson.TAG_INTEGER ? readInteger() : parseInt(getString(readCount()));
+    if (value != (int) value) {
+      throw new IOException("Expected an int but was " + value);
+    }
+    return (int) value;
+  }
+
+  @Override
+  public void nextNull() throws IOException {
+    expect(Token.NULL);
+    valueRead();
+  }
+
+  private static long parseInt(final String literal) throws IOException {
+    try {
+      return Integer.parseInt(literal);
+    } catch (NumberFormatException e) {
+      throw new IOException("Expected an int but was " + literal);
+    }
+  }
+
+  private Token readTag() throws IOException {
+    if (!buffer.hasRemaining()) {
+      throw new IOException("Unexpected end of document");
+    }
+    tag = buffer.get();
+    switch (tag) {
+      case BinaryJson.TAG_NULL:
+        return Token.NULL;
+      case BinaryJson.TAG_FALSE:
+      case BinaryJson.TAG_TRUE:
+        return Token.BOOLEAN;
+      case BinaryJson.TAG_INTEGER:
+      case BinaryJson.TAG_NUMBER:
+        return Token.NUMBER;
+      case BinaryJson.TAG_STRING:
+        return Token.STRING;
+      case BinaryJson.TAG_ARRAY:
+        return Token.BEGIN_ARRAY;
+      case BinaryJson.TAG_OBJECT:
+        return Token.BEGIN_OBJECT;
+      default:
+        throw new IOException("Unknown tag " + tag + " at byte " + (buffer.position() - 1));
+    }
+  }
+
+  private void expect(final Token token) throws IOException {
+    final Token actual = peek();
+    if (actual != token) {
+      throw new IOException("Expected " + token + " but was " + actual);
+    }
+    peeked = null;
+  }
+
+  /**
+   * Counts a value as read in the enclosing array or object.
+   */
+  private void valueRead() {
+    if (stackSize == 0) {
+      rootRead = true;
+      return;
+    }
+    remaining[stackSize - 1]--;
+    expectingName[stackSize - 1] = true;
+  }
+
+  private void push(final boolean object, final int count) {
+    if (stackSize == remaining.length) {
+      isObject = Arrays.copyOf(isObject, stackSize * 2);
+      remaining = Arrays.copyOf(remaining, stackSize * 2);
+      expectingName = Arrays.copyOf(expectingName, stackSize * 2);
+    }
+    isObject[stackSize] = object;
+    remaining[stackSize] = count;
+    expectingName[stackSize] = true;
+    stackSize++;
+  }
+
+  private String getString(final int index) throws IOException {
+    if (index >= strings.length) {
+      throw new IOException("Unknown string " + index);
+    }
+    String s = strings[index];
+    if (s == null) {
+      final byte[] bytes = new byte[stringLengths[index]];
+      final ByteBuffer string = buffer.duplicate();
+      string.position(stringOffsets[index]);
+      string.get(bytes);
+      s = new String(bytes, Charsets.UTF_8);
+      strings[index] = s;
+    }
+    return s;
+  }
+
+  private long readInteger() throws IOException {
+    final long value = readVarint();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private int readCount() throws IOException {
+    final long value = readVarint();
+    if (value > Integer.MAX_VALUE) {
+      throw new IOException("Invalid count " + value);
+    }
+    return (int) value;
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        throw new IOException("Unexpected end of document");
+      }
+      final byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid varint");
+  }
+}
@@ -0,0 +1,75 @@
+package se.krka.nackabib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Stores file contents by their SHA-1 hash, so that identical resources from different snapshots
+ * and users are only stored once. Blobs are never modified after they have been added.
+ */
+public class BlobStore {
+
+  private final File dir;
+
+  public BlobStore(final File baseDir) {
+    dir = new File(baseDir, "blobs");
+  }
+
+  /**
+   * Moves the file into the store, unless the store already has the same content.
+   * In both cases the file is gone afterwards.
+   *
+   * @return the hash of the file
+   */
+  public String put(final File file) throws IOException {
+    final String hash = Util.hash(file);
+    final File blob = getFile(hash);
+    if (blob.isFile()) {
+      Files.delete(file.toPath());
+      return hash;
+    }
+    FileUtils.forceMkdir(blob.getParentFile());
+    try {
+      Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      Files.delete(file.toPath());
+    }
+    blob.setReadOnly();
+    return hash;
+  }
+
+  public File getFile(final String hash) {
+    return new File(new File(dir, hash.substring(0, 2)), hash.substring(2));
+  }
+
+  /**
+   * Deletes all blobs that are not in the live set.
+   */
+  public void gc(final Set<String> live) throws IOException {
+    final File[] prefixes = dir.listFiles();
+    if (prefixes == null) {
+      return;
+    }
+    int deleted = 0;
+    for (File prefix : prefixes) {
+      final File[] blobs = prefix.listFiles();
+      if (blobs == null) {
+        continue;
+      }
+      for (File blob : blobs) {
+        if (!live.contains(prefix.getName() + blob.getName())) {
+          Files.delete(blob.toPath());
+          deleted++;
+        }
+      }
+    }
+    if (deleted > 0) {
+      System.out.println("Deleted " + deleted + " unused blobs");
+    }
+  }
+}
@@ -0,0 +1,457 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+
+/**
+ * Append-only log of loans and reservations that were added, removed or modified between snapshots.
+ *
+ * The log is split into segments of numbered files in state/changelog, each line is one event as json.
+ * The head file holds the name of the last snapshot in the log, so that it can be brought up to date
+ * with any snapshots that are newer, which also builds the whole log from existing snapshots the first time.
+ *
+ * Only complete lines are events. A line that a crash left half written is ignored when reading and
+ * cut off before the next update appends to the log.
+ */
+public class ChangeLog {
+
+  public static final String LOANS = "loans";
+  public static final String RESERVATIONS = "reservations";
+
+  private static final List<String> RESOURCES = ImmutableList.of(LOANS, RESERVATIONS);
+  private static final Map<String, SnapshotLoader.Parser<?>> PARSERS = ImmutableMap.of(
+      LOANS, ChangeLog::readById,
+      RESERVATIONS, ChangeLog::readById);
+  private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  private final File dir;
+  private final File head;
+
+  public ChangeLog(final File baseDir) {
+    dir = new File(DataDir.getStateDir(baseDir), "changelog");
+    head = new File(dir, "head");
+  }
+
+  /**
+   * @return the last snapshot that has been added to the log, or null if the log is empty.
+   */
+  public String getHead() throws IOException {
+    final String name = head.isFile() ? FileUtils.readFileToString(head, Charsets.UTF_8).trim() : "";
+    return name.isEmpty() ? null : name;
+  }
+
+  /**
+   * Appends the changes of all snapshots that are newer than the head of the log.
+   */
+  public void update(final List<Snapshot> snapshots) throws IOException {
+    final String lastLogged = repair();
+    final String headName = getHead();
+    // The head is written after the events of a snapshot, so a crash in between leaves some or all events
+    // of snapshots newer than the head in the log. Those must not be added twice.
+    final Set<String> logged = lastLogged != null && (headName == null || lastLogged.compareTo(headName) > 0)
+        ? getEventKeys(headName) : ImmutableSet.of();
+    int first = 0;
+    while (first < snapshots.size() && headName != null && snapshots.get(first).getName().compareTo(headName) <= 0) {
+      first++;
+    }
+    // Load in batches, so that building the log from scratch doesn't need all snapshots in memory at once
+    for (int start = first; start < snapshots.size(); start += SnapshotLoader.BATCH_SIZE) {
+      final int end = Math.min(snapshots.size(), start + SnapshotLoader.BATCH_SIZE);
+      // Only the resources that changed are parsed, in both snapshots
+      final Set<String> changed = Sets.newHashSet();
+      final Set<String> needed = Sets.newHashSet();
+      for (int i = start; i < end; i++) {
+        final Snapshot previous = i == 0 ? null : snapshots.get(i - 1);
+        final Snapshot snapshot = snapshots.get(i);
+        for (String username : getUsernames(previous, snapshot)) {
+          for (String resource : RESOURCES) {
+            if (!isUnchanged(previous, snapshot, username, resource)) {
+              changed.add(key(snapshot, username, resource));
+              needed.add(key(snapshot, username, resource));
+              if (previous != null) {
+                needed.add(key(previous, username, resource));
+              }
+            }
+          }
+        }
+      }
+      final SnapshotLoader loader = SnapshotLoader.load(snapshots.subList(Math.max(0, start - 1), end), PARSERS,
+          (snapshot, username, resource) -> needed.contains(key(snapshot, username, resource)));
+      for (int i = start; i < end; i++) {
+        final Snapshot snapshot = snapshots.get(i);
+        append(diff(loader, changed, i == 0 ? null : snapshots.get(i - 1), snapshot).stream()
+            .filter(event -> !logged.contains(event.getKey()))
+            .collect(Collectors.toList()));
+        Util.writeAtomically(head, snapshot.getName().getBytes(Charsets.UTF_8));
+      }
+    }
+  }
+
+  public void update(final File baseDir) throws IOException {
+    update(Snapshot.openAll(baseDir));
+  }
+
+  /**
+   * Passes all events to the consumer in the order they were added.
+   */
+  public void replay(final Consumer<Event> consumer) throws IOException {
+    replay(null, consumer);
+  }
+
+  /**
+   * Passes the events after the given position to the consumer in the order they were added.
+   *
+   * @param from a position returned by an earlier replay, or null to start from the beginning.
+   * @return the position after the last event, for continuing later.
+   */
+  public Position replay(final Position from, final Consumer<Event> consumer) throws IOException {
+    Position position = from;
+    for (File segment : getSegments()) {
+      if (from != null && segment.getName().compareTo(from.segment) < 0) {
+        continue;
+      }
+      long offset = from != null && segment.getName().equals(from.segment) ? from.offset : 0;
+      final long end;
+      try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+        end = completeLength(file, file.length());
+      }
+      try (InputStream in = ByteStreams.limit(Files.newInputStream(segment.toPath()), end)) {
+        ByteStreams.skipFully(in, offset);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          offset += line.getBytes(Charsets.UTF_8).length + 1;
+          if (!line.isEmpty()) {
+            consumer.accept(Event.fromJson(new JSONObject(line)));
+          }
+        }
+      }
+      position = new Position(segment.getName(), offset);
+    }
+    return position;
+  }
+
+  /**
+   * @return true if the position points into the current log, which is not the case if the log
+   * has been deleted or truncated since the position was returned.
+   */
+  public boolean contains(final Position position) {
+    if (position == null) {
+      return true;
+    }
+    final File segment = new File(dir, position.segment);
+    return segment.isFile() && segment.length() >= position.offset;
+  }
+
+  /**
+   * Cuts off a line at the end of the log that a crash left half written, so that the next event
+   * is not appended to it.
+   *
+   * @return the snapshot of the last event in the log, or null if the log is empty
+   */
+  private String repair() throws IOException {
+    final List<File> segments = getSegments();
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      try (RandomAccessFile file = new RandomAccessFile(segments.get(i), "rw")) {
+        final long end = completeLength(file, file.length());
+        if (end < file.length()) {
+          System.out.println("Removing an incomplete event at the end of " + segments.get(i));
+          file.setLength(end);
+        }
+        if (end > 0) {
+          final long start = completeLength(file, end - 1);
+          final byte[] line = new byte[(int) (end - 1 - start)];
+          file.seek(start);
+          file.readFully(line);
+          return Event.fromJson(new JSONObject(new String(line, Charsets.UTF_8))).getSnapshot();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the length of the file up to and including the last newline before end, which leaves out
+   * a line that is still being written or that a crash left half written.
+   */
+  private static long completeLength(final RandomAccessFile file, final long end) throws IOException {
+    final byte[] buffer = new byte[8192];
+    long position = end;
+    while (position > 0) {
+      final int length = (int) Math.min(buffer.length, position);
+      position -= length;
+      file.seek(position);
+      file.readFully(buffer, 0, length);
+      for (int i = length - 1; i >= 0; i--) {
+        if (buffer[i] == '\n') {
+          return position + i + 1;
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the keys of the events in the log for snapshots after the given one, or all if it is null
+   */
+  private Set<String> getEventKeys(final String after) throws IOException {
+    final Set<String> keys = Sets.newHashSet();
+    replay(event -> {
+      if (after == null || event.getSnapshot().compareTo(after) > 0) {
+        keys.add(event.getKey());
+      }
+    });
+    return keys;
+  }
+
+  private List<File> getSegments() {
+    final File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+    if (files == null) {
+      return ImmutableList.of();
+    }
+    return Arrays.stream(files).sorted().collect(Collectors.toList());
+  }
+
+  private void append(final List<Event> events) throws IOException {
+    if (events.isEmpty()) {
+      return;
+    }
+    FileUtils.forceMkdir(dir);
+    final List<File> segments = getSegments();
+    File segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || segment.length() > SEGMENT_SIZE) {
+      segment = new File(dir, String.format("%08d.log", segments.size()));
+    }
+    try (Writer writer = Files.newBufferedWriter(segment.toPath(), Charsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      for (Event event : events) {
+        writer.write(event.toJson().toString());
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * @param changed the resources of the snapshot that differ from the previous one
+   */
+  private static List<Event> diff(final SnapshotLoader loader, final Set<String> changed, final Snapshot previous,
+                                  final Snapshot snapshot) {
+    final ImmutableList.Builder<Event> events = ImmutableList.builder();
+    for (String username : getUsernames(previous, snapshot)) {
+      for (String resource : RESOURCES) {
+        if (!changed.contains(key(snapshot, username, resource))) {
+          continue;
+        }
+        final Map<String, JSONObject> oldItems = getItems(loader, previous, username, resource);
+        final Map<String, JSONObject> newItems = getItems(loader, snapshot, username, resource);
+        for (Map.Entry<String, JSONObject> entry : newItems.entrySet()) {
+          final JSONObject old = oldItems.get(entry.getKey());
+          if (old == null) {
+            events.add(new Event(snapshot.getName(), username, resource, Op.ADD, entry.getKey(), entry.getValue()));
+          } else if (!old.similar(entry.getValue())) {
+            events.add(new Event(snapshot.getName(), username, resource, Op.MODIFY, entry.getKey(), entry.getValue()));
+          }
+        }
+        for (String id : oldItems.keySet()) {
+          if (!newItems.containsKey(id)) {
+            events.add(new Event(snapshot.getName(), username, resource, Op.REMOVE, id, null));
+          }
+        }
+      }
+    }
+    return events.build();
+  }
+
+  private static Set<String> getUsernames(final Snapshot previous, final Snapshot snapshot) {
+    final Set<String> usernames = Sets.newTreeSet(snapshot.getUsernames());
+    if (previous != null) {
+      // Include users that are gone, so that their items are removed
+      usernames.addAll(previous.getUsernames());
+    }
+    return usernames;
+  }
+
+  private static String key(final Snapshot snapshot, final String username, final String resource) {
+    return snapshot.getName() + "/" + username + "/" + resource;
+  }
+
+  /**
+   * @return true if the resource is missing in both snapshots or has the same content in both
+   */
+  private static boolean isUnchanged(final Snapshot previous, final Snapshot snapshot, final String username,
+                                     final String resource) {
+    final String before = previous == null ? null : previous.getContentKey(username, resource);
+    final String after = snapshot.getContentKey(username, resource);
+    if (Objects.equals(before, after)) {
+      // Missing in both or the same blob
+      return true;
+    }
+    if (before == null || after == null || (previous.hasManifest() && snapshot.hasManifest())) {
+      return false;
+    }
+    // Files in plain directories are keyed by path, so compare their contents instead
+    final File beforeFile = previous.getFile(username, resource);
+    final File afterFile = snapshot.getFile(username, resource);
+    try {
+      if (beforeFile != null && afterFile != null) {
+        if (beforeFile.length() != afterFile.length()) {
+          return false;
+        }
+        // Unchanged downloads are usually hard links to the previous file
+        if (Files.isSameFile(beforeFile.toPath(), afterFile.toPath())) {
+          return true;
+        }
+      }
+      try (InputStream a = previous.openResource(username, resource);
+           InputStream b = snapshot.openResource(username, resource)) {
+        return IOUtils.contentEquals(a, b);
+      }
+    } catch (IOException e) {
+      // Just diff the items
+      return false;
+    }
+  }
+
+  private static Map<String, JSONObject> getItems(final SnapshotLoader loader, final Snapshot snapshot,
+                                                  final String username, final String resource) {
+    final Map<String, JSONObject> items = snapshot == null ? null : loader.get(snapshot, username, resource);
+    return items == null ? ImmutableMap.of() : items;
+  }
+
+  private static SortedMap<String, JSONObject> readById(final JsonReader reader) throws IOException {
+    final SortedMap<String, JSONObject> items = Maps.newTreeMap();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      final JSONObject item = (JSONObject) reader.readValue();
+      items.put(item.getString("id"), item);
+    }
+    reader.endArray();
+    return items;
+  }
+
+  /**
+   * A place in the log, between two events.
+   */
+  public static class Position {
+    private final String segment;
+    private final long offset;
+
+    private Position(final String segment, final long offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+
+    public static Position parse(final String s) {
+      final int colon = s.lastIndexOf(':');
+      return new Position(s.substring(0, colon), Long.parseLong(s.substring(colon + 1)));
+    }
+
+    @Override
+    public String toString() {
+      return segment + ":" + offset;
+    }
+  }
+
+  public enum Op {
+    ADD, REMOVE, MODIFY
+  }
+
+  public static class Event {
+    private final String snapshot;
+    private final String username;
+    private final String resource;
+    private final Op op;
+    private final String id;
+    private final JSONObject data;
+
+    private Event(final String snapshot, final String username, final String resource,
+                  final Op op, final String id, final JSONObject data) {
+      this.snapshot = snapshot;
+      this.username = username;
+      this.resource = resource;
+      this.op = op;
+      this.id = id;
+      this.data = data;
+    }
+
+    public String getSnapshot() {
+      return snapshot;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    public String getResource() {
+      return resource;
+    }
+
+    public Op getOp() {
+      return op;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return the item after the change, or null for removed items.
+     */
+    public JSONObject getData() {
+      return data;
+    }
+
+    /**
+     * An item changes at most once in each snapshot, so this identifies the event.
+     */
+    private String getKey() {
+      return snapshot + "/" + username + "/" + resource + "/" + id;
+    }
+
+    private JSONObject toJson() {
+      final JSONObject json = new JSONObject();
+      json.put("snapshot", snapshot);
+      json.put("user", username);
+      json.put("resource", resource);
+      json.put("op", op.name().toLowerCase());
+      json.put("id", id);
+      json.putOpt("data", data);
+      return json;
+    }
+
+    private static Event fromJson(final JSONObject json) {
+      return new Event(
+          json.getString("snapshot"),
+          json.getString("user"),
+          json.getString("resource"),
+          Op.valueOf(json.getString("op").toUpperCase()),
+          json.getString("id"),
+          json.optJSONObject("data"));
+    }
+  }
+}
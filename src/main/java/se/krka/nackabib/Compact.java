@@ -0,0 +1,116 @@
+package se.krka.nackabib;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import org.apache.commons.io.FileUtils;
+import uk.co.flamingpenguin.jewel.cli.ArgumentValidationException;
+import uk.co.flamingpenguin.jewel.cli.Cli;
+import uk.co.flamingpenguin.jewel.cli.CliFactory;
+import uk.co.flamingpenguin.jewel.cli.Option;
+
+/**
+ * Moves the snapshot directories of closed months into one {@link Pack} per month.
+ * The most recent snapshot is always kept as a directory, since Dedup and the download compare against it.
+ *
+ * Run it while no download is in progress, e.g.
+ * java -cp target/nackabib-*-jar-with-dependencies.jar se.krka.nackabib.Compact -d data
+ */
+public class Compact {
+
+  public static void main(String[] args) throws Exception {
+    final Cli<Options> cli = CliFactory.createCli(Options.class);
+    try {
+      final Options options = cli.parseArguments(args);
+      final File baseDir = new File(options.dataDir());
+      if (!baseDir.isDirectory()) {
+        System.err.println(baseDir.getAbsolutePath() + " is not a directory");
+        System.exit(1);
+        return;
+      }
+      compact(baseDir);
+    } catch (ArgumentValidationException e) {
+      System.err.println(cli.getHelpMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void compact(final File baseDir) throws IOException {
+    final List<File> dirs = DataDir.getDirectories(baseDir);
+    if (dirs.size() < 2) {
+      return;
+    }
+    final String currentMonth = getMonth(DataDir.getCurrentTimestamp());
+
+    // month -> directories, leaving out the most recent snapshot
+    final SortedMap<String, List<File>> months = Maps.newTreeMap();
+    for (File dir : dirs.subList(0, dirs.size() - 1)) {
+      final String month = getMonth(dir.getName());
+      if (month.compareTo(currentMonth) < 0) {
+        months.computeIfAbsent(month, key -> Lists.newArrayList()).add(dir);
+      }
+    }
+    if (months.isEmpty()) {
+      return;
+    }
+
+    final File packDir = Pack.getDir(baseDir);
+    FileUtils.forceMkdir(packDir);
+    for (Map.Entry<String, List<File>> entry : months.entrySet()) {
+      final File file = new File(packDir, entry.getKey() + ".zip");
+
+      // A month that was already packed gets a new pack with both the old and the new snapshots
+      final SortedMap<String, Snapshot> snapshots = Maps.newTreeMap();
+      if (file.isFile()) {
+        for (Snapshot snapshot : Snapshot.openAll(baseDir)) {
+          if (snapshot.isPacked() && getMonth(snapshot.getName()).equals(entry.getKey())) {
+            snapshots.put(snapshot.getName(), snapshot);
+          }
+        }
+      }
+      for (File dir : entry.getValue()) {
+        snapshots.put(dir.getName(), Snapshot.open(dir));
+      }
+
+      System.out.println("Packing " + entry.getValue().size() + " snapshots into " + file);
+      Util.writeAtomically(file, tmp -> Pack.write(tmp.toFile(), Lists.newArrayList(snapshots.values())));
+
+      // Until the directories are gone they are read instead of the pack, with the same contents
+      for (File dir : entry.getValue()) {
+        FileUtils.deleteDirectory(dir);
+      }
+    }
+
+    // Blobs of the packed manifest snapshots are now in the packs
+    Snapshot.gc(baseDir);
+
+    // Dedup only keeps hashes for directories
+    final HashCache hashCache = HashCache.load(baseDir);
+    hashCache.retain(DataDir.getDirectories(baseDir));
+    hashCache.save();
+  }
+
+  private static String getMonth(final String timestamp) {
+    // Timestamps start with YYYY-MM
+    return timestamp.substring(0, 7);
+  }
+
+  public interface Options {
+    @Option(
+        longName = "help", shortName = "h",
+        description = "Show help message",
+        helpRequest = true
+    )
+    Void help();
+
+    @Option(
+        longName = "data-dir", shortName = "d",
+        description = "Base directory for downloaded data"
+    )
+    String dataDir();
+  }
+}
@@ -0,0 +1,193 @@
+package se.krka.nackabib;
+
+import com.google.common.collect.Maps;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.SortedMap;
+import uk.co.flamingpenguin.jewel.cli.ArgumentValidationException;
+import uk.co.flamingpenguin.jewel.cli.Cli;
+import uk.co.flamingpenguin.jewel.cli.CliFactory;
+import uk.co.flamingpenguin.jewel.cli.Option;
+
+/**
+ * Converts all stored resources of a data directory between JSON text and {@link BinaryJson},
+ * for migrating existing data or for getting readable files back when debugging.
+ *
+ * Run it while no download is in progress, e.g.
+ * java -cp target/nackabib-*-jar-with-dependencies.jar se.krka.nackabib.Convert -d data --to binary
+ */
+public class Convert {
+
+  private final boolean binary;
+  private final BlobStore blobStore;
+  // Hash of an original resource -> hash of the converted blob
+  private final Map<String, String> convertedBlobs = Maps.newHashMap();
+  // Hash of an original resource -> converted file in a plain snapshot, to link to instead of converting again
+  private final Map<String, File> convertedFiles = Maps.newHashMap();
+  private int converted;
+
+  private Convert(final File baseDir, final boolean binary) {
+    this.binary = binary;
+    this.blobStore = new BlobStore(baseDir);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Cli<Options> cli = CliFactory.createCli(Options.class);
+    try {
+      final Options options = cli.parseArguments(args);
+      final File baseDir = new File(options.dataDir());
+      if (!baseDir.isDirectory()) {
+        System.err.println(baseDir.getAbsolutePath() + " is not a directory");
+        System.exit(1);
+        return;
+      }
+      final String to = options.to();
+      if (!to.equals("json") && !to.equals("binary")) {
+        showHelp(cli);
+        return;
+      }
+      convert(baseDir, to.equals("binary"));
+    } catch (ArgumentValidationException e) {
+      showHelp(cli);
+    }
+  }
+
+  private static void showHelp(final Cli<Options> cli) {
+    System.err.println(cli.getHelpMessage());
+    System.exit(1);
+  }
+
+  public static void convert(final File baseDir, final boolean binary) throws IOException {
+    final Convert convert = new Convert(baseDir, binary);
+    boolean manifestsChanged = false;
+    for (Snapshot snapshot : Snapshot.openAll(baseDir)) {
+      if (snapshot.isPacked()) {
+        // Packs are never modified, they keep the format they were written in
+        continue;
+      }
+      if (snapshot.hasManifest()) {
+        manifestsChanged |= convert.convertManifest(snapshot);
+      } else {
+        convert.convertPlain(snapshot);
+      }
+    }
+    if (manifestsChanged) {
+      Snapshot.gc(baseDir);
+    }
+    // The snapshot hashes of Dedup don't match the new contents anymore
+    final HashCache hashCache = HashCache.load(baseDir);
+    hashCache.clear();
+    hashCache.save();
+    System.out.println("Converted " + convert.converted + " resources to " + (binary ? "binary" : "json"));
+  }
+
+  private boolean convertManifest(final Snapshot snapshot) throws IOException {
+    final SortedMap<String, SortedMap<String, String>> manifest = Maps.newTreeMap();
+    boolean changed = false;
+    for (Map.Entry<String, SortedMap<String, String>> user : snapshot.getManifest().entrySet()) {
+      final SortedMap<String, String> resources = Maps.newTreeMap();
+      for (Map.Entry<String, String> resource : user.getValue().entrySet()) {
+        final String hash = resource.getValue();
+        String newHash = convertedBlobs.get(hash);
+        if (newHash == null) {
+          final File tmp = File.createTempFile("convert", ".tmp", snapshot.getDir());
+          try {
+            newHash = convert(blobStore.getFile(hash), tmp) ? blobStore.put(tmp) : hash;
+          } finally {
+            Files.deleteIfExists(tmp.toPath());
+          }
+          convertedBlobs.put(hash, newHash);
+        }
+        resources.put(resource.getKey(), newHash);
+        changed |= !newHash.equals(hash);
+      }
+      manifest.put(user.getKey(), resources);
+    }
+    if (changed) {
+      Snapshot.writeManifest(snapshot.getDir(), manifest);
+    }
+    return changed;
+  }
+
+  private void convertPlain(final Snapshot snapshot) throws IOException {
+    for (String username : snapshot.getUsernames()) {
+      final File[] files = new File(snapshot.getDir(), username).listFiles(File::isFile);
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        // Files are often hard links shared with the previous snapshot, so always replace them instead of writing
+        final String hash = Util.hash(file);
+        final File previous = convertedFiles.get(hash);
+        final boolean[] replaced = {false};
+        // Nothing is written to tmp if the file doesn't need converting, which leaves it as it is
+        Util.writeAtomically(file, tmp -> {
+          if (previous != null) {
+            Util.linkOrCopy(previous, tmp.toFile());
+            replaced[0] = true;
+          } else {
+            replaced[0] = convert(file, tmp.toFile());
+          }
+        });
+        if (replaced[0]) {
+          convertedFiles.put(hash, file);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return false if the source is already in the wanted format, or isn't JSON at all
+   */
+  private boolean convert(final File source, final File target) throws IOException {
+    try (JsonReader reader = JsonReader.open(source)) {
+      if ((reader instanceof BinaryJsonReader) == binary) {
+        return false;
+      }
+      final JsonReader.Token first;
+      try {
+        first = reader.peek();
+      } catch (IOException e) {
+        return false;
+      }
+      if (first != JsonReader.Token.BEGIN_ARRAY && first != JsonReader.Token.BEGIN_OBJECT) {
+        return false;
+      }
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+        if (binary) {
+          BinaryJson.encode(() -> JsonReader.open(source), out);
+        } else {
+          JsonFormatter.format(reader, out);
+        }
+      }
+    }
+    converted++;
+    return true;
+  }
+
+  public interface Options {
+    @Option(
+        longName = "help", shortName = "h",
+        description = "Show help message",
+        helpRequest = true
+    )
+    Void help();
+
+    @Option(
+        longName = "data-dir", shortName = "d",
+        description = "Base directory for downloaded data"
+    )
+    String dataDir();
+
+    @Option(
+        longName = "to",
+        description = "Format to convert to, json or binary"
+    )
+    String to();
+  }
+}
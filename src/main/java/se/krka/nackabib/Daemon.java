@@ -0,0 +1,127 @@
+package se.krka.nackabib;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps running and downloads on a schedule, instead of being started by cron for every download.
+ * The HTTP clients with their sessions and the render model are kept between downloads,
+ * so each update only logs in when a session has expired and only reads the new snapshot.
+ * With a {@link Server}, each update also publishes the page to it.
+ *
+ * Stops on SIGTERM, after giving a download in progress some time to finish.
+ */
+public class Daemon {
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  private final File baseDir;
+  private final UserConfig config;
+  // null if nothing should be rendered
+  private final File renderFile;
+  private final String changedFile;
+  // null if not serving
+  private final Server server;
+  private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+      1, new ThreadFactoryBuilder().setNameFormat("daemon").build());
+  private final Downloader.Clients clients;
+  private final Render render;
+
+  private volatile boolean stopping;
+  // Set by a download and cleared once the page is rendered and published, so that a failed render is
+  // retried with the next update. Starts out set, to have the model ready at startup.
+  private boolean needsRender = true;
+
+  public Daemon(final File baseDir, final UserConfig config, final File renderFile, final String changedFile,
+                final Server server) throws IOException {
+    this.baseDir = baseDir;
+    this.config = config;
+    this.renderFile = renderFile;
+    this.changedFile = changedFile;
+    this.server = server;
+    this.clients = new Downloader.Clients(baseDir, config);
+    this.render = new Render(config);
+    // Shutting down cancels the next update instead of waiting for it
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Runs until the process is stopped.
+   */
+  public void run() throws InterruptedException {
+    Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "daemon-shutdown"));
+    System.out.println("Running as daemon, downloading every " + config.getDaemonInterval());
+    scheduler.execute(this::update);
+    scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  private void update() {
+    Duration next;
+    try {
+      Dedup.dedup(baseDir);
+      final Duration interval = config.getDaemonInterval();
+      if (DataDir.timeSinceLastUpdate(baseDir).compareTo(interval) >= 0) {
+        Downloader.download(baseDir, clients);
+        needsRender = true;
+      } else {
+        System.out.println("Already up to date, skipping download");
+      }
+      if ((renderFile != null || server != null) && needsRender) {
+        render.collectData(baseDir);
+        if (renderFile != null) {
+          Main.render(render, baseDir, renderFile, false, changedFile);
+        }
+        if (server != null) {
+          server.publish(render.toSite());
+        }
+        needsRender = false;
+      }
+      next = interval.minus(DataDir.timeSinceLastUpdate(baseDir));
+    } catch (Exception e) {
+      if (stopping) {
+        return;
+      }
+      next = config.getDaemonRetryInterval();
+      System.err.println("Update failed, trying again in " + next);
+      e.printStackTrace();
+    }
+    if (next.isNegative()) {
+      next = Duration.ZERO;
+    }
+    System.out.println("Next update in " + next);
+    try {
+      scheduler.schedule(this::update, next.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Stopping
+    }
+  }
+
+  private void stop() {
+    stopping = true;
+    System.out.println("Stopping daemon");
+    if (server != null) {
+      server.stop();
+    }
+    scheduler.shutdown();
+    try {
+      if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("Update still running after " + SHUTDOWN_TIMEOUT_SECONDS + " seconds, interrupting it");
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      clients.close();
+    } catch (IOException e) {
+      System.err.println("Could not close http clients: " + e);
+    }
+    System.out.println("Stopped daemon");
+  }
+}
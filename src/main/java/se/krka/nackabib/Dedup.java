@@ -1,57 +1,97 @@
 package se.krka.nackabib;
 
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
+import com.google.common.collect.Lists;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class Dedup {
   public static void dedup(final File baseDir) throws IOException {
-    final File[] children = baseDir.listFiles();
-    if (children == null) {
+    if (!baseDir.isDirectory()) {
       return;
     }
     System.out.println("Running deduper");
-    final List<File> files = Arrays.stream(children)
-            .filter(file -> !file.getName().endsWith("inprogress"))
-            .sorted(Comparator.comparing(File::getName)).collect(Collectors.toList());
+    // Only look at completed snapshots, not config, state or downloads in progress
+    final List<File> files = DataDir.getDirectories(baseDir);
+    final HashCache cache = HashCache.load(baseDir);
+
+    // A snapshot is hashed again if it is new or its size or modification time no longer matches the cache.
+    // Every other snapshot keeps its cached hash without being read, so the triples around it are compared
+    // again, but only the changed snapshots are hashed.
+    final List<String> hashes = Lists.newArrayList();
+    final List<File> uncached = Lists.newArrayList();
+    for (File file : files) {
+      final String hash = cache.get(file);
+      hashes.add(hash);
+      if (hash == null) {
+        uncached.add(file);
+      }
+    }
+    final Iterator<String> newHashes = TreeHasher.hashAll(uncached).iterator();
+    for (int i = 0; i < files.size(); i++) {
+      if (hashes.get(i) == null) {
+        hashes.set(i, newHashes.next());
+        cache.put(files.get(i), hashes.get(i));
+      }
+    }
+
     String prev1 = "";
     String prev2 = "";
     File prev2File = null;
+    boolean deleted = false;
 
-    for (File file : files) {
-      String hash = hash(file);
-      if (hash.equals(prev2) && prev2.equals(prev1)) {
+    if (uncached.contains(files.isEmpty() ? null : files.get(0))
+        || (files.size() > 1 && uncached.contains(files.get(1)))) {
+      // The snapshots before the first directory are in packs, which are never deleted from.
+      // They only matter if one of the first two directories changed.
+      for (String hash : getLastPackedHashes(baseDir, files.get(0).getName())) {
+        prev1 = prev2;
+        prev2 = hash;
+      }
+    }
+
+    for (int i = 0; i < files.size(); i++) {
+      final File file = files.get(i);
+      final String hash = hashes.get(i);
+      if (hash.equals(prev2) && prev2.equals(prev1) && prev2File != null) {
         System.out.println("Deleting " + prev2File);
         FileUtils.deleteDirectory(prev2File);
+        deleted = true;
       }
       prev1 = prev2;
       prev2 = hash;
       prev2File = file;
     }
 
+    cache.retain(DataDir.getDirectories(baseDir));
+    cache.save();
+
+    if (deleted) {
+      Snapshot.gc(baseDir);
+    }
+
     System.out.println("Done with deduping");
   }
 
-  private static String hash(File file) throws IOException {
-    if (file.isDirectory()) {
-      final Hasher hasher = Hashing.sha1().newHasher();
-      final List<File> sortedChildren = Arrays.stream(file.listFiles()).sorted(Comparator.comparing(File::getName)).collect(Collectors.toList());
-      for (File child : sortedChildren) {
-        hasher.putString(hash(child), StandardCharsets.US_ASCII);
+  /**
+   * @return the hashes of the last two packed snapshots before the given snapshot name, oldest first
+   */
+  private static List<String> getLastPackedHashes(final File baseDir, final String before) throws IOException {
+    final List<Pack> packs = Pack.openAll(baseDir);
+    final List<String> hashes = Lists.newArrayList();
+    for (int i = packs.size() - 1; i >= 0 && hashes.size() < 2; i--) {
+      final Pack pack = packs.get(i);
+      final List<String> names = pack.getSnapshotNames();
+      for (int j = names.size() - 1; j >= 0 && hashes.size() < 2; j--) {
+        if (names.get(j).compareTo(before) < 0) {
+          hashes.add(0, pack.getTreeHash(names.get(j)));
+        }
       }
-      return hasher.hash().toString();
-    } else {
-      return Files.hash(file, Hashing.sha1()).toString();
     }
+    return hashes;
   }
 
 }
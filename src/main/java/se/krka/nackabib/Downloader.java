@@ -1,18 +1,48 @@
 package se.krka.nackabib;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-
-import java.io.ByteArrayOutputStream;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -23,104 +53,306 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
-public class Downloader {
+public class Downloader implements Closeable {
 
   public static final Pattern PATTERN = Pattern.compile(" id=\"UrlToken\" value=\"([^\"]*)\"");
+  private static final byte[] CACHE_WORKING = "{\"cacheState\":\"working\"}".getBytes(Charsets.UTF_8);
   private String urlToken;
 
   public static void download(final File baseDir, UserConfig config) throws Exception {
-    final String timestamp = Util.getCurrentTimestamp();
+    try (Clients clients = new Clients(baseDir, config)) {
+      download(baseDir, clients);
+    }
+  }
+
+  /**
+   * Downloads a new snapshot with clients that may have been used for earlier downloads.
+   */
+  public static void download(final File baseDir, final Clients clients) throws Exception {
+    final String timestamp = DataDir.getCurrentTimestamp();
     final File downloadDir = FileUtils.getFile(baseDir, timestamp);
     final File inprogressDir = FileUtils.getFile(baseDir, timestamp + ".inprogress");
+    final List<File> snapshots = DataDir.getDirectories(baseDir);
+    final Snapshot previous = snapshots.isEmpty() ? null : Snapshot.open(snapshots.get(snapshots.size() - 1));
     try {
       FileUtils.forceMkdir(inprogressDir);
       System.out.println("Writing to " + inprogressDir.getAbsolutePath());
-      download(config, inprogressDir);
+      final Map<String, Set<String>> changes = clients.download(inprogressDir, previous);
+      if (clients.config.useBlobStore()) {
+        Snapshot.convertToManifest(inprogressDir, new BlobStore(baseDir));
+      }
       System.out.println("Move " + inprogressDir.getName() + " to " + downloadDir.getName());
       FileUtils.moveDirectory(inprogressDir, downloadDir);
+      recordChanges(baseDir, timestamp, changes);
     } catch (final Throwable e) {
       FileUtils.deleteDirectory(inprogressDir);
       throw e;
     }
+
+    try {
+      new ChangeLog(baseDir).update(baseDir);
+    } catch (IOException | RuntimeException e) {
+      // The snapshot is complete, so the log can catch up later
+      System.err.println("Could not update change log: " + e);
+    }
+  }
+
+  /**
+   * Adds a line with the resources that changed compared to the previous snapshot to state/changes.jsonl
+   */
+  private static void recordChanges(final File baseDir, final String timestamp, final Map<String, Set<String>> changes)
+      throws IOException {
+    final JSONObject changed = new JSONObject();
+    for (Map.Entry<String, Set<String>> entry : changes.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        changed.put(entry.getKey(), new JSONArray(entry.getValue()));
+      }
+    }
+    System.out.println("Changed resources: " + (changed.length() == 0 ? "none" : changed.toString()));
+    final JSONObject line = new JSONObject();
+    line.put("snapshot", timestamp);
+    line.put("changed", changed);
+    final File file = new File(DataDir.getStateDir(baseDir), "changes.jsonl");
+    final String previous = file.isFile() ? FileUtils.readFileToString(file, Charsets.UTF_8) : "";
+    // Rewritten instead of appended, so a crash can't leave half a line, and a line that an older
+    // version left unfinished is dropped
+    final String complete = previous.substring(0, previous.lastIndexOf('\n') + 1);
+    Util.writeAtomically(file, (complete + line + "\n").getBytes(Charsets.UTF_8));
   }
 
   public static void main(String[] args) throws Exception {
     File baseDir = new File("data");
     Dedup.dedup(baseDir);
-    download(new UserConfig(baseDir), baseDir);
+    try (Clients clients = new Clients(baseDir, new UserConfig(baseDir))) {
+      clients.download(baseDir, null);
+    }
   }
 
-  private static void download(final UserConfig config, final File downloadDir) throws Exception {
-    for (Map.Entry<String, UserConfig.User> entry : config.getUsersByUsername().entrySet()) {
-      final String key = entry.getKey();
-      final UserConfig.User user = entry.getValue();
-      final Downloader downloader = new Downloader(key, user.getPassword());
-      final File dir = new File(downloadDir, key);
-      FileUtils.forceMkdir(dir);
-      downloader.fetchAll(dir);
+  /**
+   * One client per account and the threads they share. Daemon mode keeps them between downloads,
+   * so that connections and logged in sessions are reused.
+   */
+  public static class Clients implements Closeable {
+    private final File baseDir;
+    private final UserConfig config;
+    private final Map<String, Downloader> downloaders = Maps.newTreeMap();
+    private final ExecutorService executor;
+    private final ExecutorService requestExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    public Clients(final File baseDir, final UserConfig config) {
+      this.baseDir = baseDir;
+      this.config = config;
+      final Map<String, UserConfig.User> users = config.getUsersByUsername();
+      final int parallelism = Math.min(config.getParallelism(), Math.max(1, users.size()));
+      final int requestsPerAccount = config.getRequestsPerAccount();
+      executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+          .setNameFormat("download-%d")
+          .setDaemon(true)
+          .build());
+      requestExecutor = Executors.newFixedThreadPool(
+          parallelism * requestsPerAccount, new ThreadFactoryBuilder()
+              .setNameFormat("request-%d")
+              .setDaemon(true)
+              .build());
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("retry-scheduler")
+          .setDaemon(true)
+          .build());
+      final SessionStore sessionStore = new SessionStore(baseDir);
+      final ValidatorStore validatorStore = new ValidatorStore(baseDir);
+      for (Map.Entry<String, UserConfig.User> entry : users.entrySet()) {
+        downloaders.put(entry.getKey(), new Downloader(
+            entry.getKey(), entry.getValue().getPassword(), config.getEndpoints(), requestExecutor, scheduler,
+            sessionStore, validatorStore, requestsPerAccount, config.useBinaryFormat()));
+      }
+    }
+
+    /**
+     * @return the names of the changed resources by username
+     */
+    private Map<String, Set<String>> download(final File downloadDir, final Snapshot previous) throws Exception {
+      // The run timeout and retry budget are for each download
+      final RetryPolicy retryPolicy = config.newRetryPolicy();
+      final Metrics metrics = new Metrics();
+      final Map<String, Future<Set<String>>> futures = Maps.newTreeMap();
+      for (Map.Entry<String, Downloader> entry : downloaders.entrySet()) {
+        final String key = entry.getKey();
+        final Downloader downloader = entry.getValue();
+        futures.put(key, executor.submit(() -> {
+          final File dir = new File(downloadDir, key);
+          FileUtils.forceMkdir(dir);
+          return downloader.fetchAll(dir, previous, retryPolicy, metrics);
+        }));
+      }
+
+      // Wait for all accounts, even if one fails, so every failure can be reported
+      final Map<String, Throwable> failures = Maps.newTreeMap();
+      final Map<String, Set<String>> changes = Maps.newTreeMap();
+      try {
+        for (Map.Entry<String, Future<Set<String>>> entry : futures.entrySet()) {
+          try {
+            changes.put(entry.getKey(), entry.getValue().get());
+          } catch (ExecutionException e) {
+            System.err.println("Failed to download " + entry.getKey() + ": " + e.getCause());
+            failures.put(entry.getKey(), e.getCause());
+            metrics.failed(entry.getKey());
+          }
+        }
+      } finally {
+        // Stop what is left if waiting was interrupted
+        futures.values().forEach(future -> future.cancel(true));
+        writeMetrics(metrics, failures.isEmpty() && changes.size() == futures.size());
+      }
+      if (!failures.isEmpty()) {
+        final RuntimeException e = new RuntimeException(
+            "Failed to download " + failures.size() + " of " + downloaders.size() + " accounts: "
+                + failures.keySet());
+        failures.values().forEach(e::addSuppressed);
+        throw e;
+      }
+      return changes;
+    }
+
+    private void writeMetrics(final Metrics metrics, final boolean success) {
+      try {
+        metrics.write(DataDir.getStateDir(baseDir), success);
+      } catch (IOException | RuntimeException e) {
+        // Not worth failing the download for
+        System.err.println("Could not write metrics: " + e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      executor.shutdownNow();
+      requestExecutor.shutdownNow();
+      scheduler.shutdownNow();
+      for (Downloader downloader : downloaders.values()) {
+        downloader.close();
+      }
     }
   }
 
   private final BasicCookieStore cookieStore;
-  private final CloseableHttpClient client;
+  private final int maxConnections;
+  // Created on the first request, setting up TLS is slow and not needed if nothing is downloaded
+  private CloseableHttpClient client;
+  private final ExecutorService requestExecutor;
+  private final ScheduledExecutorService scheduler;
+  // Set for each download by fetchAll
+  private RetryPolicy retryPolicy;
+  private Metrics metrics;
+  private final SessionStore sessionStore;
+  private final ValidatorStore validatorStore;
   private final String username;
   private final String password;
+  private final Endpoints endpoints;
+  private final boolean binary;
 
   private boolean loggedIn = false;
 
-  public Downloader(String username, String password) {
+  public Downloader(String username, String password, Endpoints endpoints, ExecutorService requestExecutor,
+                    ScheduledExecutorService scheduler, SessionStore sessionStore,
+                    ValidatorStore validatorStore, int maxConnections, boolean binary) {
     this.username = username;
     this.password = password;
+    this.endpoints = endpoints;
+    this.requestExecutor = requestExecutor;
+    this.scheduler = scheduler;
+    this.sessionStore = sessionStore;
+    this.validatorStore = validatorStore;
+    this.binary = binary;
+    this.maxConnections = maxConnections;
     cookieStore = new BasicCookieStore();
-    client = HttpClientBuilder.create()
-        .setDefaultCookieStore(cookieStore)
-        .setDefaultRequestConfig(RequestConfig.custom()
-            .setCookieSpec(CookieSpecs.STANDARD)
-            .build())
-        .build();
   }
 
-  private void ensureLogin() throws IOException {
+  private synchronized CloseableHttpClient getClient() {
+    if (client == null) {
+      final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+      connectionManager.setMaxTotal(maxConnections);
+      connectionManager.setDefaultMaxPerRoute(maxConnections);
+      client = HttpClientBuilder.create()
+          .setConnectionManager(connectionManager)
+          .setDefaultCookieStore(cookieStore)
+          // Redirects are followed in sendFollowRedirect, so that expired sessions can be detected
+          .disableRedirectHandling()
+          .setDefaultRequestConfig(RequestConfig.custom()
+              .setCookieSpec(CookieSpecs.STANDARD)
+              .build())
+          .build();
+    }
+    return client;
+  }
+
+  private void ensureLogin() throws IOException, InterruptedException {
     if (loggedIn) {
       return;
     }
 
+    final Optional<String> savedUrlToken = sessionStore.load(username, cookieStore);
+    if (savedUrlToken.isPresent() && hasSessionCookie()) {
+      // The saved session is validated by the API responses, see fetchAll
+      System.out.println("Reusing saved session for " + username);
+      urlToken = savedUrlToken.get();
+      loggedIn = true;
+      return;
+    }
+    cookieStore.clear();
+    freshLogin();
+  }
+
+  private void freshLogin() throws IOException, InterruptedException {
     loggedIn = login();
     if (!loggedIn) {
       throw new RuntimeException("Could not login with username " + username);
     }
   }
 
-  private boolean login() throws IOException {
+  private boolean login() throws IOException, InterruptedException {
+    final long start = System.nanoTime();
+    boolean success = false;
+    try {
+      success = sendLogin();
+      return success;
+    } finally {
+      metrics.login(username, System.nanoTime() - start, success);
+    }
+  }
+
+  private boolean sendLogin() throws IOException, InterruptedException {
     getUrlToken();
 
     final HttpPost request = new HttpPost();
-    request.setURI(URI.create(Login.BASE_URL));
+    request.setURI(URI.create(endpoints.getAuth()));
 
     request.setEntity(new UrlEncodedFormEntity(ImmutableList.of(
         new BasicNameValuePair("Username", username),
         new BasicNameValuePair("Password", password),
         new BasicNameValuePair("RememberLogin", "true"),
-        new BasicNameValuePair(
-            "ReturnUrl",
-                Login.RETURN_URL),
+        new BasicNameValuePair("ReturnUrl", endpoints.getReturnUrl()),
         new BasicNameValuePair("UrlToken", urlToken)
     ), "UTF-8"));
 
-    String response = sendFollowRedirect(request);
+    sendFollowRedirect(request, (response, body) -> readString(body));
+    return hasSessionCookie();
+  }
+
+  private boolean hasSessionCookie() {
     return cookieStore.getCookies().stream()
         .filter(c -> c.getName().equals(".AspNetCore.Cookies"))
         .findAny()
         .isPresent();
   }
 
-  private void getUrlToken() throws IOException {
-    String initialResponse = sendWaitForCache(getRequest("https://bib.nacka.se/login"));
+  private void getUrlToken() throws IOException, InterruptedException {
+    String initialResponse = await(sendWaitForCache(
+        getRequest(endpoints.getLoginPage()), (response, body) -> readString(body)));
     Matcher matcher = PATTERN.matcher(initialResponse);
     if (!matcher.find()) {
       throw new RuntimeException("Could not find UrlToken on login page");
@@ -128,116 +360,404 @@ public class Downloader {
     urlToken = matcher.group(1);
   }
 
-  void fetchAll(final File dir) throws Exception {
-    ensureLogin();
+  @Override
+  public synchronized void close() throws IOException {
+    if (client != null) {
+      client.close();
+    }
+  }
 
-    saveResource(dir, "cards");
-    saveResource(dir, "loans");
-    saveResource(dir, "debts");
-    saveResource(dir, "catalogs");
-    saveResource(dir, "reservations");
-    saveSettings(dir);
-    saveResource2(dir, "catalogs/libraries", "libraries");
+  /**
+   * Downloads all resources to dir. Resources that are unchanged since the previous snapshot
+   * are linked to the files in that snapshot instead of written again.
+   *
+   * @param previous the previous snapshot, may be null
+   * @return the names of the resources that changed compared to the previous snapshot
+   */
+  Set<String> fetchAll(final File dir, final Snapshot previous, final RetryPolicy retryPolicy,
+                       final Metrics metrics) throws Exception {
+    this.retryPolicy = retryPolicy;
+    this.metrics = metrics;
+    ensureLogin();
+    final Map<String, ValidatorStore.Validator> validators = new ConcurrentHashMap<>();
+    Set<String> changed;
+    try {
+      changed = fetchResources(dir, previous, validators);
+    } catch (SessionExpiredException e) {
+      System.out.println("Saved session for " + username + " has expired, logging in again");
+      sessionStore.delete(username);
+      cookieStore.clear();
+      freshLogin();
+      validators.clear();
+      FileUtils.cleanDirectory(dir);
+      changed = fetchResources(dir, previous, validators);
+    }
+    sessionStore.save(username, cookieStore, urlToken);
+    validatorStore.save(username, validators);
+    return changed;
   }
 
-  private void saveSettings(final File dir) throws IOException, JSONException {
-    final JSONObject value = (JSONObject) getResource("settings");
-    // This field is both useless and very volatile
-    value.remove("id");
-    value.put("username", username);
-    value.put("urltoken", urlToken);
-    writeFile(dir, "settings", value);
+  private Set<String> fetchResources(final File dir, final Snapshot previous,
+                                     final Map<String, ValidatorStore.Validator> validators) throws Exception {
+    final Resources resources = new Resources(dir, previous, validatorStore.load(username), validators);
+
+    // The resources are independent of each other once we have a session cookie
+    final List<CompletableFuture<Boolean>> futures = ImmutableList.of(
+        saveResource(resources, "cards"),
+        saveResource(resources, "loans"),
+        saveResource(resources, "debts"),
+        saveResource(resources, "catalogs"),
+        saveResource(resources, "reservations"),
+        saveSettings(resources),
+        saveResource2(resources, "catalogs/libraries", "libraries"));
+
+    Throwable failure = null;
+    for (CompletableFuture<Boolean> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        final Throwable cause = unwrap(e.getCause());
+        if (failure == null) {
+          failure = cause;
+        } else if (cause instanceof SessionExpiredException && !(failure instanceof SessionExpiredException)) {
+          // An expired session is recoverable, so let it take precedence
+          cause.addSuppressed(failure);
+          failure = cause;
+        } else {
+          failure.addSuppressed(cause);
+        }
+      }
+    }
+    if (failure != null) {
+      Throwables.throwIfInstanceOf(failure, Exception.class);
+      Throwables.throwIfUnchecked(failure);
+      throw new RuntimeException(failure);
+    }
+    return resources.changed;
   }
 
-  private void saveResource(final File dir, final String name) throws IOException, JSONException {
-    saveResource2(dir, name, name);
+  private CompletableFuture<Boolean> saveSettings(final Resources resources) {
+    // Settings is the only resource that needs to be modified, so it's the only one parsed in memory
+    final HttpGet request = getRequest(endpoints.getApi() + "settings");
+    return sendWaitForCache(request, (response, body) -> {
+      if (body == null) {
+        throw new RuntimeException("Unexpected 304 for " + request.getURI());
+      }
+      final JSONObject value = new JSONObject(readString(body));
+      // This field is both useless and very volatile
+      value.remove("id");
+      value.put("username", username);
+      value.put("urltoken", urlToken);
+      final File file = resources.getFile("settings");
+      writeFile(file, new ByteArrayInputStream(value.toString(2).getBytes(Charsets.UTF_8)));
+      return resources.saved("settings", ValidatorStore.Validator.of(response, Util.hash(file)));
+    });
   }
 
-  private void saveResource2(final File dir, final String path, final String fileName) throws IOException, JSONException {
-    final Object value = getResource(path);
-    writeFile(dir, fileName, value);
+  private CompletableFuture<Boolean> saveResource(final Resources resources, final String name) {
+    return saveResource2(resources, name, name);
   }
 
-  private void writeFile(final File dir, final String name, Object value)
-      throws IOException, JSONException {
-    FileUtils.write(new File(dir, name), toString(value), Charsets.UTF_8);
+  private CompletableFuture<Boolean> saveResource2(final Resources resources, final String path,
+                                                   final String fileName) {
+    final HttpGet request = getRequest(endpoints.getApi() + path);
+    final ValidatorStore.Validator previous = resources.getValidator(fileName);
+    if (previous != null) {
+      previous.addTo(request);
+    }
+    return sendWaitForCache(request, (response, body) -> {
+      if (body == null) {
+        if (previous == null) {
+          throw new RuntimeException("Unexpected 304 for " + request.getURI());
+        }
+        return resources.notModified(fileName, previous.update(response));
+      }
+      final File file = resources.getFile(fileName);
+      writeFile(file, body);
+      return resources.saved(fileName, ValidatorStore.Validator.of(response, Util.hash(file)));
+    });
   }
 
-  private String toString(final Object value) throws JSONException {
-    if (value instanceof JSONObject) {
-      return ((JSONObject) value).toString(2);
+  /**
+   * Keeps track of the resources of one user during a fetch.
+   */
+  private class Resources {
+    private final File dir;
+    private final Snapshot previous;
+    private final Map<String, ValidatorStore.Validator> previousValidators;
+    private final Map<String, ValidatorStore.Validator> validators;
+    private final Set<String> changed = Sets.newConcurrentHashSet();
+
+    private Resources(final File dir, final Snapshot previous,
+                      final Map<String, ValidatorStore.Validator> previousValidators,
+                      final Map<String, ValidatorStore.Validator> validators) {
+      this.dir = dir;
+      this.previous = previous;
+      this.previousValidators = previousValidators;
+      this.validators = validators;
     }
-    if (value instanceof JSONArray) {
-      return ((JSONArray) value).toString(2);
+
+    private File getFile(final String name) {
+      return new File(dir, name);
+    }
+
+    private File getPreviousFile(final String name) {
+      return previous == null ? null : previous.getFile(username, name);
+    }
+
+    /**
+     * @return the validators to send, if they belong to the file in the previous snapshot.
+     */
+    private ValidatorStore.Validator getValidator(final String name) {
+      final ValidatorStore.Validator validator = previousValidators.get(name);
+      final File previousFile = getPreviousFile(name);
+      if (validator == null || validator.isEmpty() || previousFile == null) {
+        return null;
+      }
+      try {
+        return validator.getHash().equals(Util.hash(previousFile)) ? validator : null;
+      } catch (IOException e) {
+        // Just download it again
+        return null;
+      }
     }
-    return String.valueOf(value);
-  }
 
-  private Object getResource(final String path) throws IOException, JSONException {
-    final String baseUri = "https://bib.nacka.se/api/";
+    /**
+     * Replaces the downloaded file with the previous one if they are the same.
+     *
+     * @return true if the resource changed
+     */
+    private boolean saved(final String name, final ValidatorStore.Validator validator) throws IOException {
+      validators.put(name, validator);
+      final File previousFile = getPreviousFile(name);
+      if (previousFile != null && validator.getHash().equals(Util.hash(previousFile))) {
+        final File file = getFile(name);
+        Files.delete(file.toPath());
+        Util.linkOrCopy(previousFile, file);
+        return false;
+      }
+      changed.add(name);
+      return true;
+    }
 
-    final HttpGet request = getRequest(baseUri + path);
-    final String s = sendWaitForCache(request);
-    if (s.startsWith("{")) {
-      return new JSONObject(s);
-    } else if (s.startsWith("[")) {
-      return new JSONArray(s);
-    } else {
-      return s;
+    /**
+     * Reuses the previous file for a resource that was not modified (304).
+     *
+     * @return false, since the resource did not change
+     */
+    private boolean notModified(final String name, final ValidatorStore.Validator validator) throws IOException {
+      validators.put(name, validator);
+      Util.linkOrCopy(getPreviousFile(name), getFile(name));
+      return false;
     }
   }
 
+  /**
+   * Streams the body to the file, formatting or encoding it on the way if it is JSON.
+   */
+  private File writeFile(final File file, final InputStream body) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      body.mark(1);
+      final int first = body.read();
+      body.reset();
+      if ((first == '{' || first == '[') && binary) {
+        // Encoding reads the JSON twice, so it is spilled to a file instead of being kept in memory
+        final File spill = File.createTempFile("nackabib", ".json");
+        try {
+          Files.copy(body, spill.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          BinaryJson.encode(() -> JsonReader.open(spill), out);
+        } finally {
+          Files.deleteIfExists(spill.toPath());
+        }
+      } else if (first == '{' || first == '[') {
+        JsonFormatter.format(body, out);
+      } else {
+        ByteStreams.copy(body, out);
+      }
+    }
+    return file;
+  }
+
   private static HttpGet getRequest(final String value) {
     final HttpGet request = new HttpGet();
-    //request.setHeader("Accept", "*/*");
-    //request.setHeader("Accept-Encoding", "gzip, deflate, br");
+    request.setHeader("Accept", "*/*");
+    // Brotli is not supported by the http client, the others are decoded transparently
+    request.setHeader("Accept-Encoding", "gzip, deflate");
     request.setURI(URI.create(value));
     return request;
   }
 
-  private String sendWaitForCache(final HttpUriRequest request)
-      throws IOException {
-    while (true) {
-      final String s = sendFollowRedirect(request);
-      if (!s.equals("{\"cacheState\":\"working\"}")) {
-        return s;
-      }
+  /**
+   * Sends the request until the API is done building its cache.
+   * No thread is held while waiting between attempts, the next attempt is scheduled instead.
+   */
+  private <T> CompletableFuture<T> sendWaitForCache(final HttpUriRequest request, final BodyHandler<T> handler) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    sendWaitForCache(request, handler, 0, retryPolicy.newRequestDeadline(), result);
+    return result;
+  }
 
-      System.out.println(request.getURI() + " busy... retrying soon");
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+  private <T> void sendWaitForCache(final HttpUriRequest request, final BodyHandler<T> handler,
+                                    final int retry, final long deadline, final CompletableFuture<T> result) {
+    try {
+      requestExecutor.execute(() -> {
+        try {
+          final Optional<T> value = sendFollowRedirect(request, (response, body) ->
+              body != null && isCacheWorking(body) ? Optional.empty() : Optional.of(handler.handle(response, body)));
+          if (value.isPresent()) {
+            result.complete(value.get());
+            return;
+          }
+
+          metrics.cacheWorking(username, getEndpointName(request.getURI()));
+          final long delay = retryPolicy.nextDelay(request.getURI(), retry, deadline);
+          System.out.println(request.getURI() + " busy... retrying in " + delay + " ms");
+          scheduler.schedule(
+              () -> sendWaitForCache(request, handler, retry + 1, deadline, result),
+              delay, TimeUnit.MILLISECONDS);
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The download has been aborted
+      result.completeExceptionally(e);
     }
   }
 
-  private String sendFollowRedirect(HttpUriRequest request)
+  private static boolean isCacheWorking(final InputStream body) throws IOException {
+    // Read one byte more than the marker to tell it apart from a longer body with the same start
+    final byte[] buffer = new byte[CACHE_WORKING.length + 1];
+    body.mark(buffer.length);
+    final int n = ByteStreams.read(body, buffer, 0, buffer.length);
+    body.reset();
+    return n == CACHE_WORKING.length && Arrays.equals(CACHE_WORKING, Arrays.copyOf(buffer, n));
+  }
+
+  private static String readString(final InputStream body) throws IOException {
+    return new String(ByteStreams.toByteArray(body), Charsets.UTF_8);
+  }
+
+  private static <T> T await(final Future<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = unwrap(e.getCause());
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static Throwable unwrap(final Throwable e) {
+    if (e instanceof CompletionException && e.getCause() != null) {
+      return unwrap(e.getCause());
+    }
+    if (e instanceof UncheckedIOException) {
+      return e.getCause();
+    }
+    return e;
+  }
+
+  private <T> T sendFollowRedirect(HttpUriRequest request, final BodyHandler<T> handler)
       throws IOException {
     while (true) {
       final URI uri = request.getURI();
       System.out.println("Sending request: " + uri);
-      final CloseableHttpResponse response = client.execute(request);
-      final int statusCode = response.getStatusLine().getStatusCode();
-
-      if (statusCode == 200) {
-        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        response.getEntity().writeTo(stream);
-        return new String(stream.toByteArray(), Charsets.UTF_8);
+      final long start = System.nanoTime();
+      int statusCode = 0;
+      CountingInputStream counting = null;
+      boolean failed = true;
+      // Always close the response so the connection is released back to the pool
+      try (CloseableHttpResponse response = getClient().execute(request)) {
+        statusCode = response.getStatusLine().getStatusCode();
+
+        if (statusCode == 200) {
+          counting = new CountingInputStream(response.getEntity().getContent());
+          try (InputStream body = new BufferedInputStream(counting)) {
+            final T value = handler.handle(response, body);
+            failed = false;
+            return value;
+          }
+        }
+
+        if (statusCode == 304) {
+          final T value = handler.handle(response, null);
+          failed = false;
+          return value;
+        }
+
+        if (!isRedirect(statusCode)) {
+          throw new RuntimeException("Failed request: " + response.getStatusLine());
+        }
+
+        final Header location = response.getFirstHeader("Location");
+        if (location == null) {
+          throw new RuntimeException("Failed request: missing Location header for " + statusCode);
+        }
+
+        final URI target = uri.resolve(location.getValue());
+        // An expired session is not a failure of the request itself
+        failed = false;
+        if (isApi(uri) && isLoginPage(target)) {
+          throw new SessionExpiredException(uri);
+        }
+
+        // Follow the redirect
+        request = getRequest(target.toString());
+      } finally {
+        metrics.request(username, getEndpointName(uri), System.nanoTime() - start,
+            counting == null ? 0 : counting.getCount(), statusCode, failed);
       }
+    }
+  }
 
-      if (statusCode != 302) {
-        throw new RuntimeException("Failed request: " + response.getStatusLine());
-      }
+  /**
+   * @return the name to collect metrics by, which is the path relative to the endpoint it belongs to
+   */
+  private String getEndpointName(final URI uri) {
+    final String s = uri.getScheme() + "://" + uri.getRawAuthority() + uri.getRawPath();
+    if (s.startsWith(endpoints.getApi())) {
+      return "api/" + s.substring(endpoints.getApi().length());
+    }
+    if (s.startsWith(endpoints.getAuth())) {
+      return "auth/" + s.substring(endpoints.getAuth().length());
+    }
+    if (s.startsWith(endpoints.getLoginPage())) {
+      return "login";
+    }
+    if (s.equals(endpoints.getReturnUrl())) {
+      return "return";
+    }
+    return "other";
+  }
 
-      final Header location = response.getFirstHeader("Location");
-      if (location == null) {
-        throw new RuntimeException("Failed request: missing Location header for 302");
-      }
+  private static boolean isRedirect(final int statusCode) {
+    return statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307 || statusCode == 308;
+  }
 
-      // Follow the redirect
-      request = getRequest(location.getValue());
+  private boolean isApi(final URI uri) {
+    return uri.toString().startsWith(endpoints.getApi());
+  }
+
+  private boolean isLoginPage(final URI uri) {
+    final String s = uri.toString();
+    return s.startsWith(endpoints.getLoginPage()) || s.startsWith(endpoints.getAuth());
+  }
+
+  private static class SessionExpiredException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private SessionExpiredException(final URI uri) {
+      super("Redirected to login page from " + uri);
     }
   }
 
+  private interface BodyHandler<T> {
+    /**
+     * @param body the response body, or null if the response was 304 Not Modified
+     */
+    T handle(HttpResponse response, InputStream body) throws IOException;
+  }
+
 }
@@ -0,0 +1,54 @@
+package se.krka.nackabib;
+
+/**
+ * Urls of the library API and its login, set by endpoints in bib.conf.
+ * The defaults are the real library, other values are mostly useful for testing against a fake one.
+ */
+public class Endpoints {
+
+  public static final Endpoints DEFAULT = new Endpoints(
+      "https://bib.nacka.se/api/",
+      "https://bib.nacka.se/login",
+      "https://auth.dvbib.se/",
+      "https://bib.nacka.se:443/");
+
+  private final String api;
+  private final String loginPage;
+  private final String auth;
+  private final String returnUrl;
+
+  public Endpoints(final String api, final String loginPage, final String auth, final String returnUrl) {
+    this.api = api;
+    this.loginPage = loginPage;
+    this.auth = auth;
+    this.returnUrl = returnUrl;
+  }
+
+  /**
+   * Prefix of the resource urls, e.g. api + "loans".
+   */
+  public String getApi() {
+    return api;
+  }
+
+  /**
+   * Page with the UrlToken for the login form.
+   */
+  public String getLoginPage() {
+    return loginPage;
+  }
+
+  /**
+   * Where the login form is posted.
+   */
+  public String getAuth() {
+    return auth;
+  }
+
+  /**
+   * Where the login redirects to when it succeeds.
+   */
+  public String getReturnUrl() {
+    return returnUrl;
+  }
+}
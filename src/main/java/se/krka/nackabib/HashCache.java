@@ -0,0 +1,119 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Remembers the hash of each snapshot directory between runs, so that Dedup only has to read new snapshots.
+ * An entry is only used while the size and modification time of the snapshot are unchanged.
+ */
+public class HashCache {
+
+  private final File file;
+  // snapshot name -> entry
+  private final Map<String, Entry> entries;
+  private boolean modified;
+
+  private HashCache(final File file, final Map<String, Entry> entries) {
+    this.file = file;
+    this.entries = entries;
+  }
+
+  public static HashCache load(final File baseDir) throws IOException {
+    final File file = new File(DataDir.getStateDir(baseDir), "dedup-hashes");
+    final Map<String, Entry> entries = Maps.newTreeMap();
+    if (file.isFile()) {
+      for (String line : FileUtils.readLines(file, Charsets.UTF_8)) {
+        final List<String> parts = Splitter.on('\t').splitToList(line);
+        if (parts.size() == 3) {
+          entries.put(parts.get(0), new Entry(parts.get(1), parts.get(2)));
+        }
+      }
+    }
+    return new HashCache(file, entries);
+  }
+
+  /**
+   * @return the cached hash of the snapshot, or null if it's not known or the snapshot has changed.
+   */
+  public String get(final File dir) {
+    final Entry entry = entries.get(dir.getName());
+    if (entry == null || !entry.key.equals(key(dir))) {
+      return null;
+    }
+    return entry.hash;
+  }
+
+  public void put(final File dir, final String hash) {
+    entries.put(dir.getName(), new Entry(key(dir), hash));
+    modified = true;
+  }
+
+  /**
+   * Forgets all snapshots that are not in the list.
+   */
+  public void retain(final Collection<File> dirs) {
+    final Map<String, Entry> retained = Maps.newTreeMap();
+    for (File dir : dirs) {
+      final Entry entry = entries.get(dir.getName());
+      if (entry != null) {
+        retained.put(dir.getName(), entry);
+      }
+    }
+    if (retained.size() != entries.size()) {
+      entries.clear();
+      entries.putAll(retained);
+      modified = true;
+    }
+  }
+
+  /**
+   * Forgets all snapshots, for when their contents have been rewritten.
+   */
+  public void clear() {
+    entries.clear();
+    modified = true;
+  }
+
+  public void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      sb.append(entry.getKey()).append('\t')
+          .append(entry.getValue().key).append('\t')
+          .append(entry.getValue().hash).append('\n');
+    }
+    Util.writeAtomically(file, sb.toString().getBytes(Charsets.UTF_8));
+    modified = false;
+  }
+
+  /**
+   * Snapshots are never modified once completed, so the modification time and size of the directory
+   * and its manifest are enough to notice if one has been touched anyway.
+   */
+  private static String key(final File dir) {
+    final File manifest = new File(dir, Snapshot.MANIFEST);
+    final String[] children = dir.list();
+    return dir.lastModified() + ":" + (children == null ? 0 : children.length)
+        + (manifest.isFile() ? ":" + manifest.length() + ":" + manifest.lastModified() : "");
+  }
+
+  private static class Entry {
+    private final String key;
+    private final String hash;
+
+    private Entry(final String key, final String hash) {
+      this.key = key;
+      this.hash = hash;
+    }
+  }
+}
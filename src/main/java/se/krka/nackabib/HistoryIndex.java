@@ -0,0 +1,258 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * What Render has learned from older snapshots, so that it only has to read what is new on each run:
+ * the known users, every loan ever seen and the current loans and reservations.
+ *
+ * The index remembers the last snapshot it has seen and how far into the {@link ChangeLog} it has read.
+ * Deleting state/history-index.json makes the next render build it again from scratch.
+ */
+public class HistoryIndex {
+
+  private final File file;
+  private String snapshot;
+  private ChangeLog.Position logPosition;
+  // All maps keep insertion order, users in the order they were found
+  private final Map<String, KnownUser> users = Maps.newLinkedHashMap();
+  private final Map<String, Item> history = Maps.newLinkedHashMap();
+  private final Map<String, Item> loans = Maps.newLinkedHashMap();
+  private final Map<String, Item> reservations = Maps.newLinkedHashMap();
+
+  private HistoryIndex(final File file) {
+    this.file = file;
+  }
+
+  public static HistoryIndex empty(final File baseDir) {
+    return new HistoryIndex(getFile(baseDir));
+  }
+
+  public static HistoryIndex load(final File baseDir) {
+    final HistoryIndex index = empty(baseDir);
+    if (!index.file.isFile()) {
+      return index;
+    }
+    try {
+      final JSONObject json = new JSONObject(FileUtils.readFileToString(index.file, Charsets.UTF_8));
+      index.snapshot = json.getString("snapshot");
+      index.logPosition = json.has("logPosition") ? ChangeLog.Position.parse(json.getString("logPosition")) : null;
+      for (Object o : json.getJSONArray("users")) {
+        final KnownUser user = KnownUser.fromJson((JSONObject) o);
+        index.users.put(user.username, user);
+      }
+      readItems(json.getJSONObject("history"), index.history);
+      readItems(json.getJSONObject("loans"), index.loans);
+      readItems(json.getJSONObject("reservations"), index.reservations);
+      return index;
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Ignoring unreadable history index " + index.file + ": " + e);
+      return empty(baseDir);
+    }
+  }
+
+  private static File getFile(final File baseDir) {
+    return new File(DataDir.getStateDir(baseDir), "history-index.json");
+  }
+
+  /**
+   * @return the last snapshot that has been added, or null if the index is empty.
+   */
+  public String getSnapshot() {
+    return snapshot;
+  }
+
+  public ChangeLog.Position getLogPosition() {
+    return logPosition;
+  }
+
+  public void setPosition(final String snapshot, final ChangeLog.Position logPosition) {
+    this.snapshot = snapshot;
+    this.logPosition = logPosition;
+  }
+
+  /**
+   * @return the known users, in the order they were first found
+   */
+  public Collection<KnownUser> getUsers() {
+    return users.values();
+  }
+
+  public KnownUser getUser(final String username) {
+    return users.get(username);
+  }
+
+  public void putUser(final KnownUser user) {
+    users.put(user.username, user);
+  }
+
+  public void apply(final ChangeLog.Event event) {
+    final String id = event.getId();
+    if (event.getResource().equals(ChangeLog.LOANS)) {
+      if (event.getOp() == ChangeLog.Op.REMOVE) {
+        loans.remove(id);
+      } else {
+        final Item item = new Item(event.getUsername(), event.getSnapshot(), event.getData());
+        loans.put(id, item);
+        history.putIfAbsent(id, item);
+      }
+    } else if (event.getResource().equals(ChangeLog.RESERVATIONS)) {
+      if (event.getOp() == ChangeLog.Op.REMOVE) {
+        reservations.remove(id);
+      } else {
+        reservations.put(id, new Item(event.getUsername(), event.getSnapshot(), event.getData()));
+      }
+    }
+  }
+
+  /**
+   * @return every loan that has been seen, as it looked when it was first seen
+   */
+  public Collection<Item> getHistory() {
+    return history.values();
+  }
+
+  public Collection<Item> getLoans() {
+    return loans.values();
+  }
+
+  public Collection<Item> getReservations() {
+    return reservations.values();
+  }
+
+  public void save() throws IOException {
+    final JSONObject json = new JSONObject();
+    json.put("snapshot", snapshot);
+    if (logPosition != null) {
+      json.put("logPosition", logPosition.toString());
+    }
+    for (KnownUser user : users.values()) {
+      json.append("users", user.toJson());
+    }
+    json.put("history", writeItems(history));
+    json.put("loans", writeItems(loans));
+    json.put("reservations", writeItems(reservations));
+
+    Util.writeAtomically(file, json.toString().getBytes(Charsets.UTF_8));
+  }
+
+  private static void readItems(final JSONObject json, final Map<String, Item> items) throws JSONException {
+    for (String id : json.keySet()) {
+      items.put(id, Item.fromJson(json.getJSONObject(id)));
+    }
+  }
+
+  private static JSONObject writeItems(final Map<String, Item> items) {
+    final JSONObject json = new JSONObject();
+    for (Map.Entry<String, Item> entry : items.entrySet()) {
+      json.put(entry.getKey(), entry.getValue().toJson());
+    }
+    return json;
+  }
+
+  public static class KnownUser {
+    private final String userId;
+    private final String username;
+    private final String displayName;
+    private final String shortName;
+    private final String urlToken;
+
+    public KnownUser(final String userId, final String username, final String displayName,
+                     final String shortName, final String urlToken) {
+      this.userId = userId;
+      this.username = username;
+      this.displayName = displayName;
+      this.shortName = shortName;
+      this.urlToken = urlToken;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    public String getDisplayName() {
+      return displayName;
+    }
+
+    public String getShortName() {
+      return shortName;
+    }
+
+    public String getUrlToken() {
+      return urlToken;
+    }
+
+    private JSONObject toJson() {
+      final JSONObject json = new JSONObject();
+      json.put("userId", userId);
+      json.put("username", username);
+      json.put("displayName", displayName);
+      json.put("shortName", shortName);
+      json.put("urlToken", urlToken);
+      return json;
+    }
+
+    private static KnownUser fromJson(final JSONObject json) {
+      return new KnownUser(
+          json.getString("userId"),
+          json.getString("username"),
+          json.getString("displayName"),
+          json.getString("shortName"),
+          json.getString("urlToken"));
+    }
+  }
+
+  /**
+   * A loan or reservation together with the user it belongs to.
+   */
+  public static class Item {
+    private final String username;
+    private final String snapshot;
+    private final JSONObject data;
+
+    private Item(final String username, final String snapshot, final JSONObject data) {
+      this.username = username;
+      this.snapshot = snapshot;
+      this.data = data;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    /**
+     * @return the snapshot the item was last changed in
+     */
+    public String getSnapshot() {
+      return snapshot;
+    }
+
+    public JSONObject getData() {
+      return data;
+    }
+
+    private JSONObject toJson() {
+      final JSONObject json = new JSONObject();
+      json.put("user", username);
+      json.put("snapshot", snapshot);
+      json.put("data", data);
+      return json;
+    }
+
+    private static Item fromJson(final JSONObject json) {
+      return new Item(json.getString("user"), json.getString("snapshot"), json.getJSONObject("data"));
+    }
+  }
+}
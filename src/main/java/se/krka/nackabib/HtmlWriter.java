@@ -0,0 +1,162 @@
+package se.krka.nackabib;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Buffered writer for {@link Template} output, which escapes strings straight into its buffer.
+ * Templates write many short strings, which this does without the locking of {@link java.io.BufferedWriter},
+ * so it must only be used by one thread.
+ */
+public class HtmlWriter extends Writer {
+
+  // Replacements by character, for the characters below the length of the tables
+  private static final char[][] HTML_ESCAPES = new char['>' + 1][];
+  private static final char[][] JS_ESCAPES = new char['\\' + 1][];
+
+  static {
+    HTML_ESCAPES['&'] = "&amp;".toCharArray();
+    HTML_ESCAPES['<'] = "&lt;".toCharArray();
+    HTML_ESCAPES['>'] = "&gt;".toCharArray();
+    HTML_ESCAPES['"'] = "&quot;".toCharArray();
+    HTML_ESCAPES['\''] = "&#39;".toCharArray();
+
+    for (char c = 0; c < ' '; c++) {
+      JS_ESCAPES[c] = unicodeEscape(c);
+    }
+    // Markup characters too, so that a string can't end the script element
+    for (char c : "<>&".toCharArray()) {
+      JS_ESCAPES[c] = unicodeEscape(c);
+    }
+    JS_ESCAPES['"'] = "\\\"".toCharArray();
+    JS_ESCAPES['\''] = "\\'".toCharArray();
+    JS_ESCAPES['\\'] = "\\\\".toCharArray();
+  }
+
+  private final Writer out;
+  private final char[] buffer;
+  private int size;
+
+  public HtmlWriter(final Writer out) {
+    this(out, 8192);
+  }
+
+  public HtmlWriter(final Writer out, final int bufferSize) {
+    this.out = out;
+    this.buffer = new char[bufferSize];
+  }
+
+  @Override
+  public void write(final int c) throws IOException {
+    if (size == buffer.length) {
+      flushBuffer();
+    }
+    buffer[size++] = (char) c;
+  }
+
+  @Override
+  public void write(final char[] chars, final int offset, final int length) throws IOException {
+    if (length > buffer.length - size) {
+      flushBuffer();
+      if (length > buffer.length) {
+        out.write(chars, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(chars, offset, buffer, size, length);
+    size += length;
+  }
+
+  @Override
+  public void write(final String s, final int offset, final int length) throws IOException {
+    if (length > buffer.length - size) {
+      flushBuffer();
+      if (length > buffer.length) {
+        out.write(s, offset, length);
+        return;
+      }
+    }
+    s.getChars(offset, offset + length, buffer, size);
+    size += length;
+  }
+
+  @Override
+  public void write(final String s) throws IOException {
+    write(s, 0, s.length());
+  }
+
+  /**
+   * Writes the string with the characters that are special in HTML text and attribute values escaped.
+   */
+  public void writeHtml(final String s) throws IOException {
+    writeEscaped(s, HTML_ESCAPES);
+  }
+
+  /**
+   * Writes the string escaped for a quoted JavaScript string inside a script element.
+   */
+  public void writeJs(final String s) throws IOException {
+    final int length = s.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      final char[] replacement;
+      if (c < JS_ESCAPES.length) {
+        replacement = JS_ESCAPES[c];
+      } else if (c == '\u2028' || c == '\u2029') {
+        // Line terminators in JavaScript
+        replacement = unicodeEscape(c);
+      } else {
+        continue;
+      }
+      if (replacement != null) {
+        write(s, start, i - start);
+        write(replacement, 0, replacement.length);
+        start = i + 1;
+      }
+    }
+    write(s, start, length - start);
+  }
+
+  private void writeEscaped(final String s, final char[][] escapes) throws IOException {
+    final int length = s.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c < escapes.length) {
+        final char[] replacement = escapes[c];
+        if (replacement != null) {
+          // Copy the run before the character in one go
+          write(s, start, i - start);
+          write(replacement, 0, replacement.length);
+          start = i + 1;
+        }
+      }
+    }
+    write(s, start, length - start);
+  }
+
+  private static char[] unicodeEscape(final char c) {
+    return String.format("\\u%04x", (int) c).toCharArray();
+  }
+
+  private void flushBuffer() throws IOException {
+    out.write(buffer, 0, size);
+    size = 0;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flushBuffer();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.json.JSONObject;
+
+/**
+ * Pretty prints JSON from a stream without parsing it into objects first, so memory use is
+ * independent of the size of the document. Keys keep the order they were sent in.
+ * Works directly on UTF-8 bytes since all structural characters are ASCII.
+ */
+public class JsonFormatter {
+
+  private static final int INDENT = 2;
+
+  private final OutputStream out;
+  private int depth;
+  private boolean inString;
+  private boolean escaped;
+  private boolean justOpened;
+
+  private JsonFormatter(final OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Copies JSON from in to out with indentation. Neither stream is closed.
+   */
+  public static void format(final InputStream in, final OutputStream out) throws IOException {
+    final JsonFormatter formatter = new JsonFormatter(out);
+    final byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      for (int i = 0; i < n; i++) {
+        formatter.write(buffer[i]);
+      }
+    }
+    if (formatter.depth != 0 || formatter.inString) {
+      throw new IOException("Unexpected end of JSON document");
+    }
+  }
+
+  /**
+   * Writes the next value of the reader as indented JSON text. The output stream is not closed.
+   */
+  public static void format(final JsonReader in, final OutputStream out) throws IOException {
+    final JsonFormatter formatter = new JsonFormatter(out);
+    formatter.writeValue(in);
+  }
+
+  private void writeValue(final JsonReader in) throws IOException {
+    switch (in.peek()) {
+      case BEGIN_ARRAY:
+        in.beginArray();
+        write((byte) '[');
+        for (boolean first = true; in.hasNext(); first = false) {
+          if (!first) {
+            write((byte) ',');
+          }
+          writeValue(in);
+        }
+        in.endArray();
+        write((byte) ']');
+        break;
+      case BEGIN_OBJECT:
+        in.beginObject();
+        write((byte) '{');
+        for (boolean first = true; in.hasNext(); first = false) {
+          if (!first) {
+            write((byte) ',');
+          }
+          writeRaw(JSONObject.quote(in.nextName()));
+          write((byte) ':');
+          writeValue(in);
+        }
+        in.endObject();
+        write((byte) '}');
+        break;
+      case STRING:
+        writeRaw(JSONObject.quote(in.nextString()));
+        break;
+      case NUMBER:
+        writeRaw(in.nextString());
+        break;
+      case BOOLEAN:
+        writeRaw(Boolean.toString(in.nextBoolean()));
+        break;
+      case NULL:
+        in.nextNull();
+        writeRaw("null");
+        break;
+      default:
+        throw new IOException("Expected a value but was " + in.peek());
+    }
+  }
+
+  private void writeRaw(final String s) throws IOException {
+    for (byte b : s.getBytes(Charsets.UTF_8)) {
+      write(b);
+    }
+  }
+
+  private void write(final byte b) throws IOException {
+    if (inString) {
+      out.write(b);
+      if (escaped) {
+        escaped = false;
+      } else if (b == '\\') {
+        escaped = true;
+      } else if (b == '"') {
+        inString = false;
+      }
+      return;
+    }
+
+    switch (b) {
+      case ' ':
+      case '\t':
+      case '\n':
+      case '\r':
+        return;
+      case '}':
+      case ']':
+        depth--;
+        if (!justOpened) {
+          newline();
+        }
+        justOpened = false;
+        out.write(b);
+        return;
+      default:
+        break;
+    }
+
+    if (justOpened) {
+      justOpened = false;
+      newline();
+    }
+
+    switch (b) {
+      case '{':
+      case '[':
+        out.write(b);
+        depth++;
+        justOpened = true;
+        break;
+      case ',':
+        out.write(b);
+        newline();
+        break;
+      case ':':
+        out.write(b);
+        out.write(' ');
+        break;
+      case '"':
+        out.write(b);
+        inString = true;
+        break;
+      default:
+        out.write(b);
+        break;
+    }
+  }
+
+  private void newline() throws IOException {
+    out.write('\n');
+    for (int i = 0; i < depth * INDENT; i++) {
+      out.write(' ');
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package se.krka.nackabib;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Pull parser for stored resources, so callers can pick out the few fields they need and skip the rest
+ * without building strings or objects for them.
+ *
+ * Usage is the same as for the Gson and Android readers: beginObject, then nextName and a value
+ * while hasNext, then endObject. Fields that are not interesting are passed over with skipValue.
+ */
+public interface JsonReader extends Closeable {
+
+  enum Token {
+    BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  /**
+   * Opens a resource file, which can be either JSON text or {@link BinaryJson}.
+   */
+  static JsonReader open(final File file) throws IOException {
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      final ByteBuffer header = ByteBuffer.allocate(BinaryJson.MAGIC.length);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // keep reading
+      }
+      header.flip();
+      if (BinaryJson.isMagic(header)) {
+        final JsonReader reader = BinaryJsonReader.open(channel);
+        channel.close();
+        return reader;
+      }
+      channel.position(0);
+      return TextJsonReader.open(channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads a resource from a stream, which is closed when the reader is closed.
+   */
+  static JsonReader open(final InputStream in) throws IOException {
+    final BufferedInputStream buffered = new BufferedInputStream(in);
+    buffered.mark(BinaryJson.MAGIC.length);
+    final byte[] header = new byte[BinaryJson.MAGIC.length];
+    final int n = ByteStreams.read(buffered, header, 0, header.length);
+    if (BinaryJson.isMagic(ByteBuffer.wrap(header, 0, n))) {
+      try {
+        return new BinaryJsonReader(ByteBuffer.wrap(ByteStreams.toByteArray(buffered)));
+      } finally {
+        buffered.close();
+      }
+    }
+    buffered.reset();
+    return new TextJsonReader(Channels.newChannel(buffered), 8192);
+  }
+
+  Token peek() throws IOException;
+
+  boolean hasNext() throws IOException;
+
+  void beginArray() throws IOException;
+
+  void endArray() throws IOException;
+
+  void beginObject() throws IOException;
+
+  void endObject() throws IOException;
+
+  String nextName() throws IOException;
+
+  /**
+   * @return the next string, or the next number as it was written.
+   */
+  String nextString() throws IOException;
+
+  boolean nextBoolean() throws IOException;
+
+  int nextInt() throws IOException;
+
+  void nextNull() throws IOException;
+
+  /**
+   * Skips the next value, including everything inside it if it's an array or object.
+   */
+  default void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_ARRAY:
+          beginArray();
+          depth++;
+          break;
+        case BEGIN_OBJECT:
+          beginObject();
+          depth++;
+          break;
+        case END_ARRAY:
+          endArray();
+          depth--;
+          break;
+        case END_OBJECT:
+          endObject();
+          depth--;
+          break;
+        case NAME:
+          nextName();
+          break;
+        case STRING:
+        case NUMBER:
+          nextString();
+          break;
+        case BOOLEAN:
+          nextBoolean();
+          break;
+        case NULL:
+          nextNull();
+          break;
+        default:
+          throw new IOException("Unexpected end of document");
+      }
+    } while (depth > 0);
+  }
+
+  /**
+   * Reads the next value into the same objects that org.json would have created for it.
+   */
+  default Object readValue() throws IOException {
+    switch (peek()) {
+      case BEGIN_ARRAY: {
+        final JSONArray array = new JSONArray();
+        beginArray();
+        while (hasNext()) {
+          array.put(readValue());
+        }
+        endArray();
+        return array;
+      }
+      case BEGIN_OBJECT: {
+        final JSONObject object = new JSONObject();
+        beginObject();
+        while (hasNext()) {
+          final String name = nextName();
+          object.put(name, readValue());
+        }
+        endObject();
+        return object;
+      }
+      case STRING:
+        return nextString();
+      case NUMBER:
+        return JSONObject.stringToValue(nextString());
+      case BOOLEAN:
+        return nextBoolean();
+      case NULL:
+        nextNull();
+        return JSONObject.NULL;
+      default:
+        throw new IOException("Expected a value but was " + peek());
+    }
+  }
+}
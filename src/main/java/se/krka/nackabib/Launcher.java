@@ -0,0 +1,58 @@
+package se.krka.nackabib;
+
+import java.io.File;
+
+/**
+ * Entry point of the jar. Most scheduled runs find that the data is already up to date and do nothing,
+ * so that check is made here with {@link DataDir}, which only uses JDK classes, before the libraries
+ * {@link Main} needs are loaded.
+ * Everything else is passed on to {@link Main}.
+ */
+public final class Launcher {
+
+  private Launcher() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final File baseDir = getUpToDateDataDir(args);
+    if (baseDir != null) {
+      System.out.println("Already up to date, skipping download");
+      return;
+    }
+    Main.main(args);
+  }
+
+  /**
+   * @return the data directory if the arguments are a plain run and its data is recent enough, otherwise null
+   */
+  private static File getUpToDateDataDir(final String[] args) {
+    String dataDir = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-d":
+        case "--data-dir":
+          if (i + 1 < args.length) {
+            dataDir = args[++i];
+          }
+          break;
+        case "-r":
+        case "--render":
+        case "--changed-file":
+          // Skip the value, so that it is not mistaken for an option
+          i++;
+          break;
+        default:
+          // Forced runs, the daemon, help and anything unknown are up to Main
+          return null;
+      }
+    }
+    if (dataDir == null || dataDir.isEmpty()) {
+      return null;
+    }
+    final File baseDir = new File(dataDir);
+    if (!baseDir.isDirectory()) {
+      return null;
+    }
+    return DataDir.timeSinceLastUpdate(baseDir).compareTo(DataDir.MIN_WAIT_TIME) > 0 ? null : baseDir;
+  }
+}
@@ -1,7 +0,0 @@
-package se.krka.nackabib;
-
-public class Login {
-  public static final String BASE_URL = "https://auth.dvbib.se/";
-  public static final String RETURN_URL = "https://bib.nacka.se:443/";
-
-}
@@ -1,7 +1,10 @@
 package se.krka.nackabib;
 
+import com.google.common.base.Charsets;
 import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
+import org.apache.commons.io.FileUtils;
 import uk.co.flamingpenguin.jewel.cli.ArgumentValidationException;
 import uk.co.flamingpenguin.jewel.cli.Cli;
 import uk.co.flamingpenguin.jewel.cli.CliFactory;
@@ -9,8 +12,6 @@ import uk.co.flamingpenguin.jewel.cli.Option;
 
 public class Main {
 
-  public static final Duration MIN_WAIT_TIME = Duration.ofHours(4).minus(Duration.ofMinutes(15));
-
   public static void main(String[] args) throws Exception {
     final Cli<Options> cli = CliFactory.createCli(Options.class);
     try {
@@ -31,7 +32,9 @@ public class Main {
       boolean canRender = true;
       final String renderFilename = options.render();
       if ("".equals(renderFilename)) {
-        System.out.println("Skipping rendering, no render output specified");
+        if (options.serve() == 0) {
+          System.out.println("Skipping rendering, no render output specified");
+        }
         canRender = false;
       }
       final File renderFile = new File(renderFilename);
@@ -47,11 +50,17 @@ public class Main {
         return;
       }
 
-      final Duration timeSinceLastUpdate = Util.timeSinceLastUpdate(baseDir);
-      boolean shouldDownload = options.forceDownload() || timeSinceLastUpdate.compareTo(MIN_WAIT_TIME) > 0;
-
       final UserConfig config = new UserConfig(baseDir);
 
+      if (options.daemon() || options.serve() != 0) {
+        final Server server = options.serve() != 0 ? Server.start(config.getServerAddress(), options.serve()) : null;
+        new Daemon(baseDir, config, canRender ? renderFile : null, options.changedFile(), server).run();
+        return;
+      }
+
+      final Duration timeSinceLastUpdate = DataDir.timeSinceLastUpdate(baseDir);
+      boolean shouldDownload = options.forceDownload() || timeSinceLastUpdate.compareTo(DataDir.MIN_WAIT_TIME) > 0;
+
       Dedup.dedup(baseDir);
 
       if (shouldDownload) {
@@ -63,8 +72,7 @@ public class Main {
       if (canRender && (options.forceRender() || shouldDownload)) {
         final Render render = new Render(config);
         render.collectData(baseDir);
-        render.toHtml(renderFile);
-        System.out.println("Done rendering to " + renderFile);
+        render(render, baseDir, renderFile, options.forceRender(), options.changedFile());
       }
 
     } catch (ArgumentValidationException e) {
@@ -72,6 +80,28 @@ public class Main {
     }
   }
 
+  /**
+   * Writes the collected data to the file, unless it would be the same as the last time.
+   *
+   * @param changedFile file to create when the page was written, or an empty string
+   */
+  static void render(final Render render, final File baseDir, final File renderFile, final boolean force,
+                     final String changedFile) throws IOException {
+    final String fingerprint = render.getFingerprint() + " " + renderFile.getAbsolutePath();
+    final File fingerprintFile = new File(DataDir.getStateDir(baseDir), "render-fingerprint");
+    if (!force && renderFile.isFile() && fingerprintFile.isFile()
+        && fingerprint.equals(FileUtils.readFileToString(fingerprintFile, Charsets.UTF_8).trim())) {
+      System.out.println("Nothing has changed since the last render, skipping it");
+      return;
+    }
+    render.toHtml(renderFile);
+    Util.writeAtomically(fingerprintFile, (fingerprint + "\n").getBytes(Charsets.UTF_8));
+    if (!changedFile.isEmpty()) {
+      FileUtils.touch(new File(changedFile));
+    }
+    System.out.println("Done rendering to " + renderFile);
+  }
+
   private static void showHelp(final Cli<Options> cli) {
     System.err.println(cli.getHelpMessage());
     System.exit(1);
@@ -104,6 +134,26 @@ public class Main {
     )
     boolean forceRender();
 
+    @Option(
+        longName = "daemon",
+        description = "Keep running and download on a schedule, see daemon in example.conf"
+    )
+    boolean daemon();
+
+    @Option(
+        longName = "serve",
+        description = "Serve the page over http on this port instead of uploading it, implies --daemon",
+        defaultValue = "0"
+    )
+    int serve();
+
+    @Option(
+        longName = "changed-file",
+        description = "Create this file when the rendered page has changed, e.g. to know when to upload it",
+        defaultValue = ""
+    )
+    String changedFile();
+
     @Option(
         longName = "data-dir", shortName = "d",
         description = "Base directory for downloaded data",
@@ -0,0 +1,273 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Statistics of the http requests of one download run, by endpoint and by account.
+ * Written to state/metrics.json and state/metrics.prom (Prometheus text format) when the run is done,
+ * whether it succeeded or not.
+ *
+ * Latency is measured from sending a request until its body has been handled, for every request in a
+ * redirect chain. Bytes are those of the response bodies that were read, after decompression.
+ */
+public class Metrics {
+
+  // Upper bounds of the latency buckets in milliseconds, the last bucket has no bound
+  private static final long[] BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+  private final long startMillis = System.currentTimeMillis();
+  private final long startNanos = System.nanoTime();
+  private final Map<String, Counters> endpoints = new ConcurrentHashMap<>();
+  private final Map<String, AccountCounters> accounts = new ConcurrentHashMap<>();
+  private final Histogram logins = new Histogram();
+
+  /**
+   * @param status the http status, or 0 if there was no response
+   * @param failed true if the request did not give the expected result
+   */
+  public void request(final String account, final String endpoint, final long nanos, final long bytes,
+                      final int status, final boolean failed) {
+    for (Counters counters : counters(account, endpoint)) {
+      counters.latency.add(nanos);
+      counters.bytes.add(bytes);
+      if (status == 304) {
+        counters.notModified.increment();
+      } else if (status >= 300 && status < 400) {
+        counters.redirects.increment();
+      }
+      if (failed) {
+        counters.failures.increment();
+      }
+    }
+  }
+
+  /**
+   * The API answered that it is still building its cache, so the request will be retried.
+   */
+  public void cacheWorking(final String account, final String endpoint) {
+    for (Counters counters : counters(account, endpoint)) {
+      counters.cacheWorking.increment();
+    }
+  }
+
+  /**
+   * @param nanos the time of the whole login, from the login page to the session cookie
+   */
+  public void login(final String account, final long nanos, final boolean success) {
+    logins.add(nanos);
+    final AccountCounters counters = account(account);
+    counters.logins.increment();
+    if (!success) {
+      counters.failedLogins.increment();
+    }
+  }
+
+  /**
+   * The account could not be downloaded in this run.
+   */
+  public void failed(final String account) {
+    account(account).failedDownloads.increment();
+  }
+
+  private Counters[] counters(final String account, final String endpoint) {
+    return new Counters[]{account(account), endpoints.computeIfAbsent(endpoint, k -> new Counters())};
+  }
+
+  private AccountCounters account(final String account) {
+    return accounts.computeIfAbsent(account, k -> new AccountCounters());
+  }
+
+  /**
+   * Writes metrics.json and metrics.prom to the directory.
+   */
+  public void write(final File dir, final boolean success) throws IOException {
+    final long durationNanos = System.nanoTime() - startNanos;
+    Util.writeAtomically(new File(dir, "metrics.json"),
+        toJson(durationNanos, success).toString(2).getBytes(Charsets.UTF_8));
+    Util.writeAtomically(new File(dir, "metrics.prom"), toPrometheus(durationNanos, success).getBytes(Charsets.UTF_8));
+  }
+
+  private JSONObject toJson(final long durationNanos, final boolean success) {
+    final JSONObject json = new JSONObject();
+    json.put("start", Instant.ofEpochMilli(startMillis).toString());
+    json.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    json.put("success", success);
+    json.put("logins", logins.toJson());
+    json.put("endpoints", toJson(endpoints));
+    json.put("accounts", toJson(accounts));
+    return json;
+  }
+
+  private static JSONObject toJson(final Map<String, ? extends Counters> map) {
+    final JSONObject json = new JSONObject();
+    map.forEach((key, counters) -> json.put(key, counters.toJson()));
+    return json;
+  }
+
+  private String toPrometheus(final long durationNanos, final boolean success) {
+    final StringBuilder sb = new StringBuilder();
+    gauge(sb, "nackabib_last_run_timestamp_seconds", "Start of the last download run",
+        seconds(TimeUnit.MILLISECONDS.toNanos(startMillis)));
+    gauge(sb, "nackabib_last_run_duration_seconds", "Duration of the last download run", seconds(durationNanos));
+    gauge(sb, "nackabib_last_run_success", "1 if all accounts were downloaded in the last run", success ? "1" : "0");
+
+    header(sb, "nackabib_last_run_login_duration_seconds", "histogram", "Duration of logins in the last run");
+    logins.toPrometheus(sb, "nackabib_last_run_login_duration_seconds", "");
+
+    final Map<String, Counters> endpoints = ImmutableSortedMap.copyOf(this.endpoints);
+    final String duration = "nackabib_last_run_request_duration_seconds";
+    header(sb, duration, "histogram", "Duration of the requests in the last run, until the body was handled");
+    endpoints.forEach((endpoint, counters) ->
+        counters.latency.toPrometheus(sb, duration, label("endpoint", endpoint) + ","));
+    gauges(sb, endpoints, "endpoint", "response_bytes", "Bytes of response bodies in the last run", c -> c.bytes);
+    gauges(sb, endpoints, "endpoint", "redirects", "Redirect responses in the last run", c -> c.redirects);
+    gauges(sb, endpoints, "endpoint", "not_modified", "304 Not Modified responses in the last run",
+        c -> c.notModified);
+    gauges(sb, endpoints, "endpoint", "cache_working", "Responses that the cache was not ready in the last run",
+        c -> c.cacheWorking);
+    gauges(sb, endpoints, "endpoint", "request_failures", "Failed requests in the last run", c -> c.failures);
+
+    final Map<String, AccountCounters> accounts = ImmutableSortedMap.copyOf(this.accounts);
+    gauges(sb, accounts, "account", "account_requests", "Requests in the last run", c -> c.latency.count);
+    gauges(sb, accounts, "account", "account_response_bytes", "Bytes of response bodies in the last run",
+        c -> c.bytes);
+    gauges(sb, accounts, "account", "account_redirects", "Redirect responses in the last run", c -> c.redirects);
+    gauges(sb, accounts, "account", "account_cache_working",
+        "Responses that the cache was not ready in the last run", c -> c.cacheWorking);
+    gauges(sb, accounts, "account", "account_request_failures", "Failed requests in the last run",
+        c -> c.failures);
+    gauges(sb, accounts, "account", "account_logins", "Logins in the last run", c -> c.logins);
+    gauges(sb, accounts, "account", "account_failed_logins", "Failed logins in the last run",
+        c -> c.failedLogins);
+    gauges(sb, accounts, "account", "account_download_failures", "1 if the account failed in the last run",
+        c -> c.failedDownloads);
+    return sb.toString();
+  }
+
+  private static <C extends Counters> void gauges(final StringBuilder sb, final Map<String, C> map,
+                                                  final String label, final String name, final String help,
+                                                  final Function<C, LongAdder> value) {
+    final String metric = "nackabib_last_run_" + name;
+    header(sb, metric, "gauge", help);
+    map.forEach((key, counters) ->
+        sb.append(metric).append('{').append(label(label, key)).append("} ")
+            .append(value.apply(counters)).append('\n'));
+  }
+
+  private static void gauge(final StringBuilder sb, final String name, final String help, final String value) {
+    header(sb, name, "gauge", help);
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void header(final StringBuilder sb, final String name, final String type, final String help) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static String label(final String name, final String value) {
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+
+  private static String seconds(final long nanos) {
+    return BigDecimal.valueOf(nanos).movePointLeft(9).stripTrailingZeros().toPlainString();
+  }
+
+  private static class Counters {
+    final Histogram latency = new Histogram();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder redirects = new LongAdder();
+    final LongAdder notModified = new LongAdder();
+    final LongAdder cacheWorking = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    JSONObject toJson() {
+      final JSONObject json = new JSONObject();
+      json.put("requests", latency.count.sum());
+      json.put("bytes", bytes.sum());
+      json.put("redirects", redirects.sum());
+      json.put("notModified", notModified.sum());
+      json.put("cacheWorking", cacheWorking.sum());
+      json.put("failures", failures.sum());
+      json.put("latencyMillis", latency.toJson());
+      return json;
+    }
+  }
+
+  private static class AccountCounters extends Counters {
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder failedLogins = new LongAdder();
+    private final LongAdder failedDownloads = new LongAdder();
+
+    @Override
+    JSONObject toJson() {
+      return super.toJson()
+          .put("logins", logins.sum())
+          .put("failedLogins", failedLogins.sum())
+          .put("failed", failedDownloads.sum() > 0);
+    }
+  }
+
+  private static class Histogram {
+    // The last bucket is for everything above the last bound
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    private void add(final long nanos) {
+      int bucket = 0;
+      while (bucket < BUCKETS.length && nanos > TimeUnit.MILLISECONDS.toNanos(BUCKETS[bucket])) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+      count.increment();
+      sumNanos.add(nanos);
+    }
+
+    /**
+     * @return the count, sum and the number of requests up to each bound like in Prometheus
+     */
+    private JSONObject toJson() {
+      final JSONArray array = new JSONArray();
+      long cumulative = 0;
+      for (int i = 0; i <= BUCKETS.length; i++) {
+        cumulative += buckets.get(i);
+        array.put(new JSONObject()
+            .put("le", i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf")
+            .put("count", cumulative));
+      }
+      return new JSONObject()
+          .put("count", count.sum())
+          .put("sum", TimeUnit.NANOSECONDS.toMillis(sumNanos.sum()))
+          .put("buckets", array);
+    }
+
+    /**
+     * @param labels labels to put before le, ending with a comma, or empty
+     */
+    private void toPrometheus(final StringBuilder sb, final String name, final String labels) {
+      long cumulative = 0;
+      for (int i = 0; i <= BUCKETS.length; i++) {
+        cumulative += buckets.get(i);
+        final String le = i < BUCKETS.length ? seconds(TimeUnit.MILLISECONDS.toNanos(BUCKETS[i])) : "+Inf";
+        sb.append(name).append("_bucket{").append(labels).append("le=\"").append(le).append("\"} ")
+            .append(cumulative).append('\n');
+      }
+      final String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+      sb.append(name).append("_sum").append(suffix).append(' ').append(seconds(sumNanos.sum())).append('\n');
+      sb.append(name).append("_count").append(suffix).append(' ').append(count.sum()).append('\n');
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip archive with all snapshots of one month, in data/packs/YYYY-MM.zip.
+ *
+ * Each snapshot is stored as a manifest entry snapshots/NAME in the same format as {@link Snapshot#MANIFEST},
+ * and each distinct resource once as blobs/HASH. Entries are compressed one by one and the central
+ * directory of the zip is the index, so reading one resource only inflates that resource.
+ *
+ * Packs are shared between threads, and Compact or gc may close one while a render is reading it.
+ * Every read holds a reference to the zip file, so it is only closed when the last read is done.
+ */
+public class Pack implements Closeable {
+
+  static final String SNAPSHOTS = "snapshots/";
+  static final String BLOBS = "blobs/";
+
+  // Shared by all callers, so that the daemon doesn't open every zip again on each update
+  private static final Map<File, Pack> OPEN = Maps.newHashMap();
+
+  private final File file;
+  // Identifies the file that was opened, to notice when it is replaced
+  private final Object fileKey;
+  private final FileTime lastModified;
+  // The open zip file, or null if it is not open
+  private Handle handle;
+
+  private Pack(final File file, final BasicFileAttributes attributes) {
+    this.file = file;
+    this.fileKey = attributes == null ? null : attributes.fileKey();
+    this.lastModified = attributes == null ? null : attributes.lastModifiedTime();
+  }
+
+  public static File getDir(final File baseDir) {
+    return new File(baseDir, "packs");
+  }
+
+  /**
+   * @return all packs, oldest first
+   */
+  public static List<Pack> openAll(final File baseDir) {
+    final File dir = getDir(baseDir).getAbsoluteFile();
+    final File[] files = dir.listFiles((d, name) -> name.endsWith(".zip"));
+    final List<Pack> packs = files == null
+        ? ImmutableList.of()
+        : Arrays.stream(files).sorted().map(Pack::open).collect(Collectors.toList());
+    synchronized (OPEN) {
+      // Release packs that have been removed
+      final Iterator<Map.Entry<File, Pack>> it = OPEN.entrySet().iterator();
+      while (it.hasNext()) {
+        final Pack pack = it.next().getValue();
+        if (pack.file.getParentFile().equals(dir) && !packs.contains(pack)) {
+          pack.close();
+          it.remove();
+        }
+      }
+    }
+    return packs;
+  }
+
+  /**
+   * @return the pack for the file, which is the same instance as last time unless the file has been replaced
+   */
+  public static Pack open(final File file) {
+    final File key = file.getAbsoluteFile();
+    final BasicFileAttributes attributes = readAttributes(key);
+    synchronized (OPEN) {
+      final Pack pack = OPEN.get(key);
+      if (pack != null && pack.isSameFile(attributes)) {
+        return pack;
+      }
+      if (pack != null) {
+        // Repacked by Compact, don't keep the replaced file open
+        pack.close();
+      }
+      final Pack opened = new Pack(key, attributes);
+      OPEN.put(key, opened);
+      return opened;
+    }
+  }
+
+  private static BasicFileAttributes readAttributes(final File file) {
+    try {
+      return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    } catch (IOException e) {
+      // Reported when the pack is read
+      return null;
+    }
+  }
+
+  private boolean isSameFile(final BasicFileAttributes attributes) {
+    return attributes != null && fileKey != null
+        && fileKey.equals(attributes.fileKey()) && lastModified.equals(attributes.lastModifiedTime());
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the names of the snapshots in this pack, sorted
+   */
+  public List<String> getSnapshotNames() throws IOException {
+    final Handle handle = acquire();
+    try {
+      return Collections.list(handle.zip.entries()).stream()
+          .map(ZipEntry::getName)
+          .filter(name -> name.startsWith(SNAPSHOTS))
+          .map(name -> name.substring(SNAPSHOTS.length()))
+          .sorted()
+          .collect(Collectors.toList());
+    } finally {
+      release(handle);
+    }
+  }
+
+  public byte[] readManifest(final String snapshot) throws IOException {
+    return read(SNAPSHOTS + snapshot);
+  }
+
+  /**
+   * @return the hash that {@link TreeHasher} gives a snapshot directory with only this manifest in it
+   */
+  public String getTreeHash(final String snapshot) throws IOException {
+    final String manifestHash = Hashing.sha1().hashBytes(readManifest(snapshot)).toString();
+    return Hashing.sha1().hashString(manifestHash, Charsets.US_ASCII).toString();
+  }
+
+  /**
+   * @return the blob, which keeps the zip file open until the stream is closed
+   */
+  public InputStream openBlob(final String hash) throws IOException {
+    final Handle handle = acquire();
+    try {
+      final ZipEntry entry = handle.zip.getEntry(BLOBS + hash);
+      if (entry == null) {
+        throw new IOException("Missing blob " + hash + " in " + file);
+      }
+      return new FilterInputStream(handle.zip.getInputStream(entry)) {
+        private boolean closed;
+
+        @Override
+        public void close() throws IOException {
+          if (!closed) {
+            closed = true;
+            try {
+              super.close();
+            } finally {
+              release(handle);
+            }
+          }
+        }
+      };
+    } catch (IOException | RuntimeException e) {
+      release(handle);
+      throw e;
+    }
+  }
+
+  private byte[] read(final String name) throws IOException {
+    final Handle handle = acquire();
+    try {
+      final ZipEntry entry = handle.zip.getEntry(name);
+      if (entry == null) {
+        throw new IOException("Missing " + name + " in " + file);
+      }
+      try (InputStream in = handle.zip.getInputStream(entry)) {
+        return ByteStreams.toByteArray(in);
+      }
+    } finally {
+      release(handle);
+    }
+  }
+
+  /**
+   * The zip file is opened on first use and kept open until the pack is closed.
+   */
+  private synchronized Handle acquire() throws IOException {
+    if (handle == null) {
+      handle = new Handle(new ZipFile(file));
+    }
+    handle.references++;
+    return handle;
+  }
+
+  private synchronized void release(final Handle handle) {
+    if (--handle.references == 0) {
+      try {
+        handle.zip.close();
+      } catch (IOException e) {
+        System.err.println("Could not close " + file + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Closes the zip file once it is no longer read. It is opened again if the pack is used after this.
+   */
+  @Override
+  public synchronized void close() {
+    final Handle open = handle;
+    handle = null;
+    if (open != null) {
+      release(open);
+    }
+  }
+
+  /**
+   * Writes the snapshots into a new pack. Any existing file is replaced.
+   */
+  public static void write(final File file, final List<Snapshot> snapshots) throws IOException {
+    final Set<String> blobs = Sets.newHashSet();
+    try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.setLevel(Deflater.BEST_COMPRESSION);
+      for (Snapshot snapshot : snapshots) {
+        final SortedMap<String, SortedMap<String, String>> manifest = Maps.newTreeMap();
+        for (String username : snapshot.getUsernames()) {
+          for (String resource : snapshot.getResources(username)) {
+            final byte[] content;
+            try (InputStream in = snapshot.openResource(username, resource)) {
+              content = ByteStreams.toByteArray(in);
+            }
+            final String hash = Hashing.sha1().hashBytes(content).toString();
+            if (blobs.add(hash)) {
+              out.putNextEntry(new ZipEntry(BLOBS + hash));
+              out.write(content);
+              out.closeEntry();
+            }
+            manifest.computeIfAbsent(username, key -> Maps.newTreeMap()).put(resource, hash);
+          }
+        }
+        out.putNextEntry(new ZipEntry(SNAPSHOTS + snapshot.getName()));
+        out.write(Snapshot.formatManifest(manifest).getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.getName();
+  }
+
+  private static class Handle {
+    private final ZipFile zip;
+    // One for the pack while it is open, and one for each read in progress
+    private int references = 1;
+
+    private Handle(final ZipFile zip) {
+      this.zip = zip;
+    }
+  }
+}
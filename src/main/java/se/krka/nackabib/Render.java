@@ -5,16 +5,25 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Resources;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.apache.commons.io.FileUtils;
@@ -24,49 +33,140 @@ import org.json.JSONObject;
 
 public class Render {
 
+  private static final Map<String, SnapshotLoader.Parser<?>> USER_RESOURCES = ImmutableMap.of(
+      "settings", Render::readUrlToken,
+      "cards", Render::readCard);
+  // Debts are only shown for the most recent snapshot
+  private static final Map<String, SnapshotLoader.Parser<?>> MOST_RECENT_RESOURCES = ImmutableMap.of(
+      "settings", Render::readUrlToken,
+      "cards", Render::readCard,
+      "debts", SnapshotLoader.JSON);
+
+  static final String HISTORY_DIR = "history";
+  private static final int HISTORY_PAGE_SIZE = 100;
+
+  private static final Map<String, Template> TEMPLATES = Template.load("templates.html");
+  private static final Template PAGE_START = TEMPLATES.get("page-start");
+  private static final Template PAGE_END = TEMPLATES.get("page-end");
+  private static final Template USERS_START = TEMPLATES.get("users-start");
+  private static final Template USER_LOGIN = TEMPLATES.get("user-login");
+  private static final Template USERS_TABLE = TEMPLATES.get("users-table");
+  private static final Template USER_ROW = TEMPLATES.get("user-row");
+  private static final Template HEADER = TEMPLATES.get("header");
+  private static final Template DEBT = TEMPLATES.get("debt");
+  private static final Template RESERVATIONS_START = TEMPLATES.get("reservations-start");
+  private static final Template RESERVATION_ROW = TEMPLATES.get("reservation-row");
+  private static final Template LOANS_START = TEMPLATES.get("loans-start");
+  private static final Template LOAN_ROW = TEMPLATES.get("loan-row");
+  private static final Template HISTORY = TEMPLATES.get("history");
+  private static final Template TABLE_END = TEMPLATES.get("table-end");
+
   private final Map<String, User> usersByUserId = Maps.newTreeMap();
   private final Map<String, User> usersByUsername = Maps.newTreeMap();
   private final Set<String> shortNames = Sets.newHashSet();
 
-  private final String scriptText;
-  private final String style;
   private final UserConfig config;
+  private final Endpoints endpoints;
   private String mostRecentTimestamp;
   private List<Reservation> reservationsReady;
   private List<Reservation> reservations;
   private List<Loan> history;
   private List<Loan> loans;
   private JSONObject debts;
+  private HistoryIndex index;
 
-  public Render(UserConfig config) throws IOException {
+  public Render(UserConfig config) {
     this.config = config;
-    scriptText = Resources.toString(Resources.getResource("script.js"), Charsets.UTF_8);
-    style = Resources.toString(Resources.getResource("style.css"), Charsets.UTF_8);
+    this.endpoints = config.getEndpoints();
   }
 
+  /**
+   * Reads the data to render. Can be called again after a download, and then only reads what is new.
+   */
   public void collectData(File baseDir) throws JSONException, IOException {
-    List<File> allData = Util.getDirectories(baseDir);
-    if (allData.isEmpty()) {
+    usersByUserId.clear();
+    usersByUsername.clear();
+    shortNames.clear();
+    // Left unset if anything below fails, so that the next call starts over from the saved index
+    final HistoryIndex previousIndex = this.index;
+    this.index = null;
+
+    final List<Snapshot> snapshots = Snapshot.openAll(baseDir);
+    if (snapshots.isEmpty()) {
       throw new RuntimeException("No data found in " + baseDir.getAbsolutePath());
     }
-    File mostRecent = allData.remove(allData.size() - 1);
+    final Snapshot mostRecent = snapshots.get(snapshots.size() - 1);
 
     final String mostRecentName = mostRecent.getName();
 
-    addUsers(mostRecent);
-    for (File dir : allData) {
-      addUsers(dir);
+    final ChangeLog changeLog = new ChangeLog(baseDir);
+    changeLog.update(snapshots);
+
+    // A render that is kept between downloads keeps the index in memory, instead of reading it every time
+    HistoryIndex index = previousIndex != null ? previousIndex : HistoryIndex.load(baseDir);
+    if (index.getSnapshot() != null
+        && (index.getSnapshot().compareTo(mostRecentName) > 0 || !changeLog.contains(index.getLogPosition()))) {
+      System.out.println("History index is out of date with the data, rebuilding it");
+      index = HistoryIndex.empty(baseDir);
+    }
+
+    // Only snapshots that are newer than the index can have new users
+    final String indexed = index.getSnapshot();
+    final List<Snapshot> newSnapshots = snapshots.stream()
+        .filter(snapshot -> indexed == null || snapshot.getName().compareTo(indexed) > 0)
+        .collect(Collectors.toList());
+    final SnapshotLoader loader = SnapshotLoader.load(ImmutableList.of(mostRecent), MOST_RECENT_RESOURCES);
+
+    // Go through the users in a fixed order, so that they get the same short names every time
+    for (HistoryIndex.KnownUser user : index.getUsers()) {
+      shortNames.add(user.getShortName());
+    }
+    updateUsers(loader, index, mostRecent);
+    // In batches, since all snapshots are new the first time. Only users that are not known yet are read.
+    for (int start = 0; start < newSnapshots.size(); start += SnapshotLoader.BATCH_SIZE) {
+      final List<Snapshot> batch = newSnapshots.subList(start,
+          Math.min(newSnapshots.size(), start + SnapshotLoader.BATCH_SIZE));
+      final HistoryIndex batchIndex = index;
+      final SnapshotLoader batchLoader = SnapshotLoader.load(batch, USER_RESOURCES,
+          (snapshot, username, resource) -> batchIndex.getUser(username) == null);
+      for (Snapshot snapshot : batch) {
+        addUsers(batchLoader, index, snapshot);
+      }
+    }
+    for (HistoryIndex.KnownUser knownUser : index.getUsers()) {
+      if (usersByUserId.get(knownUser.getUserId()) == null) {
+        final String password = config.getUsersByUsername().get(knownUser.getUsername()).getPassword();
+        final User user = new User(knownUser.getUserId(), knownUser.getUsername(), knownUser.getDisplayName(),
+            knownUser.getShortName(), password, knownUser.getUrlToken());
+        usersByUserId.put(user.userId, user);
+        usersByUsername.put(user.username, user);
+      }
     }
 
     mostRecentTimestamp = mostRecentName
         .replace("T", " kl ")
         .replaceAll(":[0-9]{2}\\.[0-9]{3}$", "");
-    final Set<Loan> loansSet = getLoans(mostRecent);
-    final Set<Loan> historySet = getHistory(allData);
+
+    final ChangeLog.Position position = changeLog.replay(index.getLogPosition(), index::apply);
+    index.setPosition(mostRecentName, position);
+    index.save();
+    this.index = index;
+
+    final Set<Loan> loansSet = Sets.newTreeSet();
+    final Set<Loan> historySet = Sets.newTreeSet();
+    final Set<Reservation> reservationsSet = Sets.newTreeSet();
+    for (HistoryIndex.Item item : index.getLoans()) {
+      loansSet.add(new Loan(getUser(item.getUsername(), item.getSnapshot()), item.getData()));
+    }
+    for (HistoryIndex.Item item : index.getHistory()) {
+      historySet.add(new Loan(getUser(item.getUsername(), item.getSnapshot()), item.getData()));
+    }
+    for (HistoryIndex.Item item : index.getReservations()) {
+      reservationsSet.add(new Reservation(getUser(item.getUsername(), item.getSnapshot()), item.getData()));
+    }
     historySet.removeAll(loansSet);
-    final Set<Reservation> reservationsSet = getReservations(mostRecent);
 
-    debts = getDebts(mostRecent);
+    debts = getDebts(loader, mostRecent);
     loans = ImmutableList.sortedCopyOf(
         (o1, o2) -> ComparisonChain.start()
         .compare(o1.returnDate, o2.returnDate)
@@ -107,26 +207,95 @@ public class Render {
         .result());
   }
 
-  private void addUsers(final File dir) throws IOException, JSONException {
-    for (File subDir : dir.listFiles()) {
-      if (!subDir.isDirectory()) {
-        continue;
+  /**
+   * Adds the users of the snapshot that are not known yet.
+   */
+  private void addUsers(final SnapshotLoader loader, final HistoryIndex index, final Snapshot snapshot)
+      throws JSONException {
+    for (String username : snapshot.getUsernames()) {
+      if (index.getUser(username) == null) {
+        final HistoryIndex.KnownUser user = readUser(loader, snapshot, username, "");
+        if (index.getUsers().stream().noneMatch(known -> known.getUserId().equals(user.getUserId()))) {
+          index.putUser(new HistoryIndex.KnownUser(user.getUserId(), username, user.getDisplayName(),
+              findShortName(user.getDisplayName()), user.getUrlToken()));
+        }
       }
-      final JSONObject settings = readJsonObject(new File(subDir, "settings"));
-      final JSONArray cards = readJsonArray(new File(subDir, "cards"));
-      final String userId = cards.getJSONObject(0).getJSONObject("token").getString("userId");
-      if (usersByUserId.get(userId) == null) {
-        final String username = subDir.getName();
-        final String displayName = cards.getJSONObject(0).getString("displayName");
-        final String shortName = findShortName(displayName);
-        final String urlToken = settings.has("urltoken") ? settings.getString("urltoken") : "";
-        final String password = config.getUsersByUsername().get(username).getPassword();
-        final User user = new User(userId, username, displayName, shortName, password, urlToken);
-        usersByUserId.put(userId, user);
-        usersByUsername.put(username, user);
-        shortNames.add(shortName);
+    }
+  }
+
+  /**
+   * Refreshes the known users with names and url tokens from the snapshot, and adds the new ones.
+   */
+  private void updateUsers(final SnapshotLoader loader, final HistoryIndex index, final Snapshot snapshot)
+      throws JSONException {
+    for (String username : snapshot.getUsernames()) {
+      final HistoryIndex.KnownUser known = index.getUser(username);
+      if (known != null) {
+        index.putUser(readUser(loader, snapshot, username, known.getShortName()));
       }
     }
+    addUsers(loader, index, snapshot);
+  }
+
+  private HistoryIndex.KnownUser readUser(final SnapshotLoader loader, final Snapshot snapshot,
+                                          final String username, final String shortName) throws JSONException {
+    final String urlToken = require(loader.get(snapshot, username, "settings"), snapshot, username, "settings");
+    final Card card = require(loader.get(snapshot, username, "cards"), snapshot, username, "cards");
+    return new HistoryIndex.KnownUser(card.userId, username, card.displayName, shortName, urlToken);
+  }
+
+  private static String readUrlToken(final JsonReader reader) throws IOException {
+    String urlToken = "";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("urltoken")) {
+        urlToken = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return urlToken;
+  }
+
+  /**
+   * Reads the fields we need from the first card.
+   */
+  private static Card readCard(final JsonReader reader) throws IOException {
+    String userId = null;
+    String displayName = null;
+    reader.beginArray();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "displayName":
+          displayName = reader.nextString();
+          break;
+        case "token":
+          reader.beginObject();
+          while (reader.hasNext()) {
+            if (reader.nextName().equals("userId")) {
+              userId = reader.nextString();
+            } else {
+              reader.skipValue();
+            }
+          }
+          reader.endObject();
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    while (reader.hasNext()) {
+      reader.skipValue();
+    }
+    reader.endArray();
+    if (userId == null || displayName == null) {
+      throw new IOException("Card without userId or displayName");
+    }
+    return new Card(userId, displayName);
   }
 
   private String findShortName(final String displayName) {
@@ -146,254 +315,294 @@ public class Render {
     return displayName;
   }
 
-  private Set<Reservation> getReservations(final File dir) throws IOException, JSONException {
-    final SortedSet<Reservation> set = Sets.newTreeSet();
-    for (File subDir : dir.listFiles()) {
-      if (subDir.isDirectory()) {
-        final String username = subDir.getName();
-        final User user = getUser(subDir, username);
-        for (Object o : readJsonArray(new File(subDir, "reservations"))) {
-          set.add(new Reservation(user, (JSONObject) o));
-        }
-      }
-    }
-    return set;
-  }
-
   // I have never seen a debts objects so I don't know what to do yet
-  private JSONObject getDebts(final File dir) throws IOException, JSONException {
+  private JSONObject getDebts(final SnapshotLoader loader, final Snapshot snapshot) throws JSONException {
     JSONObject map = new JSONObject();
-    for (File subDir : dir.listFiles()) {
-      if (subDir.isDirectory()) {
-        final String username = subDir.getName();
-        final User user = getUser(subDir, username);
-        final JSONArray debts = readJsonArray(new File(subDir, "debts"));
-        if (debts.length() != 0) {
-          map.put(user.shortName, debts);
-        }
+    for (String username : snapshot.getUsernames()) {
+      final User user = getUser(username, snapshot.getName());
+      final JSONArray debts = require(loader.get(snapshot, username, "debts"), snapshot, username, "debts");
+      if (debts.length() != 0) {
+        map.put(user.shortName, debts);
       }
     }
     return map;
   }
 
-  private User getUser(final File subDir, final String username) {
+  private User getUser(final String username, final String snapshot) {
     final User user = usersByUsername.get(username);
     if (user == null) {
-      throw new RuntimeException("Could not find user in directory: " + subDir.getAbsolutePath());
+      throw new RuntimeException("Could not find user " + username + " in snapshot " + snapshot);
     }
     return user;
   }
 
-  private Set<Loan> getLoans(final File dir) throws IOException, JSONException {
-    final SortedSet<Loan> set = Sets.newTreeSet();
-    addLoan(set, dir);
-    return set;
+  /**
+   * @return a hash of everything on the page except the time of the last update,
+   * so that a page without changes doesn't have to be rendered and uploaded again.
+   */
+  public String getFingerprint() {
+    final Hasher hasher = Hashing.sha1().newHasher();
+    putStrings(hasher, Assets.STYLE, Assets.SCRIPT, debts.toString(), endpoints.getAuth(), endpoints.getReturnUrl());
+    for (Template template : TEMPLATES.values()) {
+      putStrings(hasher, template.getSource());
+    }
+    for (User user : ImmutableList.sortedCopyOf(usersByUserId.values())) {
+      putStrings(hasher, user.shortName, user.username, user.displayName, user.password, user.urlToken);
+    }
+    for (List<Reservation> list : ImmutableList.of(reservationsReady, reservations)) {
+      hasher.putInt(list.size());
+      for (Reservation r : list) {
+        putStrings(hasher, r.id, r.user.shortName, r.reservedFrom, r.lastFetchDate, r.author, r.title);
+        hasher.putInt(r.queueNumber);
+      }
+    }
+    for (List<Loan> list : ImmutableList.of(loans, history)) {
+      hasher.putInt(list.size());
+      for (Loan loan : list) {
+        putStrings(hasher, loan.id, loan.user.shortName, loan.returnDate, loan.author, loan.title);
+      }
+    }
+    return hasher.hash().toString();
   }
 
-  private Set<Loan> getHistory(final List<File> allData)
-      throws IOException, JSONException {
-    final SortedSet<Loan> set = Sets.newTreeSet();
-    for (File dir : allData) {
-      addLoan(set, dir);
+  private static void putStrings(final Hasher hasher, final String... values) {
+    for (String value : values) {
+      // Length first, so that moving characters between two values changes the hash
+      hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
     }
-    return set;
   }
 
-  private void addLoan(final SortedSet<Loan> set, final File dir)
-      throws JSONException, IOException {
-    for (File subDir : dir.listFiles()) {
-      if (subDir.isDirectory()) {
-        final User user = getUser(subDir, subDir.getName());
-        for (Object o : readJsonArray(new File(subDir, "loans"))) {
-          set.add(new Loan(user, (JSONObject) o));
-        }
+  /**
+   * Writes the page to the file, and the history pages it loads to a history directory next to it.
+   */
+  public void toHtml(final File file) throws IOException, JSONException {
+    // The history pages have to exist before the page that refers to them
+    final File historyDir = new File(file.getAbsoluteFile().getParentFile(), HISTORY_DIR);
+    final List<byte[]> historyPages = getHistoryPages();
+    final List<String> historyVersions = Lists.newArrayList();
+    FileUtils.forceMkdir(historyDir);
+    for (int i = 0; i < historyPages.size(); i++) {
+      final byte[] content = historyPages.get(i);
+      writeIfChanged(new File(historyDir, "page-" + i + ".json"), content);
+      historyVersions.add(getVersion(content));
+    }
+
+    // Written to a temporary file first, so that a crash never leaves a truncated page to upload
+    Util.writeAtomically(file, tmp -> {
+      try (HtmlWriter out = new HtmlWriter(new OutputStreamWriter(Files.newOutputStream(tmp), Charsets.UTF_8))) {
+        writeHtml(out, historyVersions);
       }
+    });
+
+    for (int i = historyPages.size(); new File(historyDir, "page-" + i + ".json").isFile(); i++) {
+      Files.delete(new File(historyDir, "page-" + i + ".json").toPath());
     }
   }
 
-  public void toHtml(final File file) throws IOException, JSONException {
-    StringBuilder sb = new StringBuilder();
-
-    sb.append("<!DOCTYPE html><html><head><meta charset=\"UTF-8\"><title>Bibliotekslån</title>\n");
-    sb.append("<style>\n");
-    sb.append(style);
-    sb.append("\n</style>\n");
-    sb.append("</head>\n");
-    sb.append("<body>\n");
-    sb.append("<div id=\"main-content\" class=\"hidden\">\n");
-    sb.append("<p>Senast uppdaterat ");
-    sb.append(mostRecentTimestamp);
-    sb.append("</p>\n");
-
-    showUsers(sb, ImmutableList.sortedCopyOf(usersByUserId.values()));
-
-    showDebts(sb, "Skulder", debts);
-    showReservation(sb, "Att hämta", reservationsReady, "Hämta senast", r -> dateSpan(r.lastFetchDate));
-    showReservation(sb, "Reservationer", reservations, "Från", r -> historic(r.reservedFrom));
-
-    showLoans(sb, "Lån", loans, "Tillbaka senast", loan -> dateSpan(loan.returnDate));
-    showLoans(sb, "Historik", history, "Tillbaka senast", loan -> historic(loan.returnDate));
-    sb.append("</div>\n");
-    sb.append("<div id=\"logging-in\" class=\"hidden\">\n");
-    sb.append("<p>Loggar in på biblioteket. Var god vänta...</p>\n");
-    sb.append("</div>\n");
-
-    sb.append("<script>\n").append(scriptText).append("\n</script>\n");
-    sb.append("</body></html>\n");
-    String s = sb.toString();
-
-    FileUtils.write(file, s, Charsets.UTF_8);
+  /**
+   * Renders the page, the history pages and the JSON API in memory, for the {@link Server}.
+   * Paths are relative to the page.
+   */
+  public Site.Builder toSite() throws IOException, JSONException {
+    final Site.Builder site = Site.builder();
+    final List<byte[]> historyPages = getHistoryPages();
+    final List<String> historyVersions = Lists.newArrayList();
+    for (int i = 0; i < historyPages.size(); i++) {
+      final byte[] content = historyPages.get(i);
+      site.put(HISTORY_DIR + "/page-" + i + ".json", Site.JSON, content);
+      historyVersions.add(getVersion(content));
+    }
+
+    final ByteArrayOutputStream page = new ByteArrayOutputStream(1 << 16);
+    try (HtmlWriter out = new HtmlWriter(new OutputStreamWriter(page, Charsets.UTF_8))) {
+      writeHtml(out, historyVersions);
+    }
+    site.put("index.html", Site.HTML, page.toByteArray());
+
+    final JSONArray users = new JSONArray();
+    for (User user : ImmutableList.sortedCopyOf(usersByUserId.values())) {
+      // Not the passwords, only the page needs them for logging in
+      users.put(new JSONObject()
+          .put("shortName", user.shortName)
+          .put("displayName", user.displayName));
+    }
+    final JSONArray loans = new JSONArray();
+    for (Loan loan : this.loans) {
+      loans.put(new JSONObject()
+          .put("user", loan.user.shortName)
+          .put("author", loan.author)
+          .put("title", loan.title)
+          .put("returnDate", loan.returnDate)
+          .put("renewable", loan.renewable));
+    }
+    final JSONArray reservations = new JSONArray();
+    for (Reservation reservation : Iterables.concat(reservationsReady, this.reservations)) {
+      reservations.put(new JSONObject()
+          .put("user", reservation.user.shortName)
+          .put("author", reservation.author)
+          .put("title", reservation.title)
+          .put("reservedFrom", reservation.reservedFrom)
+          .put("lastFetchDate", reservation.lastFetchDate)
+          .put("queueNumber", reservation.queueNumber));
+    }
+    site.put("api/users.json", Site.JSON, users.toString().getBytes(Charsets.UTF_8));
+    site.put("api/loans.json", Site.JSON, loans.toString().getBytes(Charsets.UTF_8));
+    site.put("api/reservations.json", Site.JSON, reservations.toString().getBytes(Charsets.UTF_8));
+    site.put("api/debts.json", Site.JSON, debts.toString().getBytes(Charsets.UTF_8));
+    return site;
   }
 
-  private void showDebts(final StringBuilder sb, final String header, final JSONObject debts) throws JSONException {
+  /**
+   * @return a short hash of a history page, which the page adds to its url so that browsers load new versions
+   */
+  private static String getVersion(final byte[] historyPage) {
+    return Hashing.sha1().hashBytes(historyPage).toString().substring(0, 8);
+  }
+
+  /**
+   * Splits the history into pages of JSON arrays with one [shortName, returnDate, author, title] per loan.
+   * Page 0 has the oldest loans, so that earlier pages stay the same when new loans are returned.
+   * Loans within a page are newest first, the same order as the page shows them in.
+   */
+  private List<byte[]> getHistoryPages() {
+    final List<byte[]> pages = Lists.newArrayList();
+    final int size = history.size();
+    for (int end = size; end > 0; end -= HISTORY_PAGE_SIZE) {
+      final int start = Math.max(0, end - HISTORY_PAGE_SIZE);
+      final JSONArray page = new JSONArray();
+      for (Loan loan : history.subList(start, end)) {
+        page.put(new JSONArray(ImmutableList.of(loan.user.shortName, loan.returnDate, loan.author, loan.title)));
+      }
+      pages.add(page.toString().getBytes(Charsets.UTF_8));
+    }
+    return pages;
+  }
+
+  /**
+   * Leaves the file as it is if it already has the content, so that unchanged history pages are not uploaded again.
+   */
+  private static void writeIfChanged(final File file, final byte[] content) throws IOException {
+    if (file.isFile() && Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+      return;
+    }
+    Util.writeAtomically(file, content);
+  }
+
+  private void writeHtml(final HtmlWriter out, final List<String> historyVersions) throws IOException, JSONException {
+    PAGE_START.render(out, Assets.STYLE, mostRecentTimestamp);
+
+    showUsers(out, ImmutableList.sortedCopyOf(usersByUserId.values()));
+
+    showDebts(out, "Skulder", debts);
+    showReservation(out, "Att hämta", reservationsReady, "Hämta senast", "date", r -> r.lastFetchDate);
+    showReservation(out, "Reservationer", reservations, "Från", "color-past", r -> r.reservedFrom);
+
+    showLoans(out, "Lån", loans, "Tillbaka senast", "date", loan -> loan.returnDate);
+    if (!history.isEmpty()) {
+      HISTORY.render(out, "Historik", history.size(), "Tillbaka senast", HISTORY_DIR + "/page-",
+          String.join(" ", historyVersions));
+    }
+
+    PAGE_END.render(out, Assets.SCRIPT);
+  }
+
+  private void showDebts(final HtmlWriter out, final String header, final JSONObject debts)
+      throws IOException, JSONException {
     int total = 0;
     for (String key : debts.keySet()) {
       total += debts.getJSONArray(key).length();
     }
     if (debts.length() != 0) {
-      sb.append("<h3>").append(header).append(" (").append(total).append(")").append("</h3>\n");
+      HEADER.render(out, header, total);
       for (String key : debts.keySet()) {
-        sb.append("<pre>").append(debts.getJSONArray(key).toString(2)).append("</pre>\n");
+        DEBT.render(out, debts.getJSONArray(key).toString(2));
       }
     }
   }
 
-  private void showReservation(final StringBuilder sb, final String header, final List<Reservation> list,
-                               final String dateColumn,
-                               final Function<Reservation, String> dateSupplier) {
+  private void showReservation(
+      final HtmlWriter out,
+      final String header,
+      final List<Reservation> list,
+      final String dateColumn,
+      final String dateClass,
+      final Function<Reservation, String> dateSupplier) throws IOException {
     if (!list.isEmpty()) {
-      sb.append("<h3>").append(header).append(" (").append(list.size()).append(")").append("</h3>\n");
-      sb.append("<table><thead><tr>");
-      sb.append("<th>Låntagare</th>");
-      sb.append("<th>").append(dateColumn).append("</th>");
-      sb.append("<th>Köplats</th>");
-      sb.append("<th>Författare</th>");
-      sb.append("<th>Titel</th>");
-      sb.append("</tr></thead>\n");
-      sb.append("<tbody>\n");
-      final List<Grouper.Group<Reservation, User>> grouped =
-          Grouper.groupBy(list, Reservation::getUser);
-      for (Grouper.Group<Reservation, User> group : grouped) {
+      RESERVATIONS_START.render(out, header, list.size(), dateColumn);
+      for (Grouper.Group<Reservation, User> group : Grouper.groupBy(list, Reservation::getUser)) {
         for (Reservation reservation : group.getObjects()) {
-          sb.append("<tr>");
-          sb.append("<td>");
-          sb.append(group.getKey().shortName);
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(dateSupplier.apply(reservation));
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(reservation.queueNumber);
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(reservation.author);
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(reservation.title);
-          sb.append("</td>");
-          sb.append("</tr>\n");
+          RESERVATION_ROW.render(out, group.getKey().shortName, dateClass, dateSupplier.apply(reservation),
+              reservation.queueNumber, reservation.author, reservation.title);
         }
       }
-      sb.append("</tbody></table>\n");
+      TABLE_END.render(out);
     }
   }
 
   private void showLoans(
-      final StringBuilder sb,
+      final HtmlWriter out,
       final String header,
       final List<Loan> list,
       final String dateColumn,
-      final Function<Loan, String> dateSupplier) {
+      final String dateClass,
+      final Function<Loan, String> dateSupplier) throws IOException {
     if (!list.isEmpty()) {
-      sb.append("<h3>").append(header).append(" (").append(list.size()).append(")").append("</h3>\n");
-      sb.append("<table><thead><tr>");
-      sb.append("<th>Låntagare</th>");
-      sb.append("<th>").append(dateColumn).append("</th>");
-      sb.append("<th>Författare</th>");
-      sb.append("<th>Titel</th>");
-      sb.append("</tr></thead>\n");
-      sb.append("<tbody>\n");
-      final List<Grouper.Group<Loan, User>> grouped =
-          Grouper.groupBy(list, Loan::getUser);
-      for (Grouper.Group<Loan, User> group : grouped) {
+      LOANS_START.render(out, header, list.size(), dateColumn);
+      for (Grouper.Group<Loan, User> group : Grouper.groupBy(list, Loan::getUser)) {
         for (Loan loan : group.getObjects()) {
-          sb.append("<tr>");
-          sb.append("<td>");
-          sb.append(group.getKey().shortName);
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(dateSupplier.apply(loan));
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(loan.author);
-          sb.append("</td>");
-          sb.append("<td>");
-          sb.append(loan.title);
-          sb.append("</td>");
-          sb.append("</tr>\n");
+          LOAN_ROW.render(out, group.getKey().shortName, dateClass, dateSupplier.apply(loan),
+              loan.author, loan.title);
         }
       }
-      sb.append("</tbody></table>\n");
+      TABLE_END.render(out);
     }
-
   }
-  private void showUsers(
-      final StringBuilder sb,
-      final Collection<User> users) {
+
+  private void showUsers(final HtmlWriter out, final Collection<User> users) throws IOException {
     if (!users.isEmpty()) {
-      sb.append("<script>\n");
-      sb.append("users = {};");
+      USERS_START.render(out, endpoints.getAuth(), endpoints.getReturnUrl());
       for (User user : users) {
-        sb.append("users[\"" + user.shortName + "\"] = [" +
-                "\"" + user.urlToken + "\", " +
-                "\"" + user.username + "\", " +
-                "\"" + user.password + "\"" +
-                "];\n");
+        USER_LOGIN.render(out, user.shortName, user.urlToken, user.username, user.password);
       }
-      sb.append("</script>\n");
-      sb.append("<h3>").append("Låntagare").append("</h3>\n");
-      sb.append("<table><thead><tr>");
-      sb.append("<th>Förkortning</th>");
-      sb.append("<th>Namn</th>");
-      sb.append("</tr></thead>\n");
-      sb.append("<tbody>\n");
+      USERS_TABLE.render(out);
       for (User user : users) {
-        sb.append("<tr>");
-        sb.append("<td>");
-        sb.append(user.shortName);
-        sb.append("</td>");
-        sb.append("<td>");
-        sb.append("<a href=\"?login_as=")
-                .append(user.shortName)
-                .append("\" target=\"_blank\">");
-        sb.append(user.displayName);
-        sb.append("</a>");
-        sb.append("</td>");
-        sb.append("</tr>\n");
-
+        USER_ROW.render(out, user.shortName, user.displayName);
       }
-      sb.append("</tbody></table>\n");
+      TABLE_END.render(out);
     }
   }
 
-  private String dateSpan(final String date) {
-    return span(date, "date");
-  }
-
-  private String historic(final String date) {
-    return span(date, "color-past");
+  private static <T> T require(final T value, final Snapshot snapshot, final String username, final String resource) {
+    if (value == null) {
+      throw new RuntimeException("Missing " + username + "/" + resource + " in snapshot " + snapshot.getName());
+    }
+    return value;
   }
 
-  private String span(final String s, final String clazz) {
-    return "<span class=\"" + clazz + "\">" + s + "    </span>";
+  /**
+   * Loaded on first use, so that creating a Render that ends up not rendering anything is cheap.
+   */
+  private static class Assets {
+    private static final String SCRIPT = load("script.js");
+    private static final String STYLE = load("style.css");
+
+    private static String load(final String name) {
+      try {
+        return Resources.toString(Resources.getResource(name), Charsets.UTF_8);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
   }
 
-  private JSONArray readJsonArray(final File file) throws JSONException, IOException {
-    return new JSONArray(FileUtils.readFileToString(file, Charsets.UTF_8));
-  }
+  private static class Card {
+    private final String userId;
+    private final String displayName;
 
-  private JSONObject readJsonObject(final File file) throws JSONException, IOException {
-    return new JSONObject(FileUtils.readFileToString(file, Charsets.UTF_8));
+    private Card(final String userId, final String displayName) {
+      this.userId = userId;
+      this.displayName = displayName;
+    }
   }
 
   private static class Loan implements Comparable<Loan> {
@@ -0,0 +1,52 @@
+package se.krka.nackabib;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how long to wait before polling a resource again while the API is still building its cache.
+ * One instance covers a whole download run, which is what the run deadline and the retry budget apply to.
+ */
+public class RetryPolicy {
+
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final long requestTimeoutNanos;
+  private final long runDeadlineNanos;
+  private final AtomicInteger remainingRetries;
+
+  public RetryPolicy(final Duration initialDelay, final Duration maxDelay,
+                     final Duration requestTimeout, final Duration runTimeout, final int budget) {
+    this.initialDelayMillis = initialDelay.toMillis();
+    this.maxDelayMillis = maxDelay.toMillis();
+    this.requestTimeoutNanos = requestTimeout.toNanos();
+    this.runDeadlineNanos = System.nanoTime() + runTimeout.toNanos();
+    this.remainingRetries = new AtomicInteger(budget);
+  }
+
+  public long newRequestDeadline() {
+    return Math.min(System.nanoTime() + requestTimeoutNanos, runDeadlineNanos);
+  }
+
+  /**
+   * @return the delay in milliseconds before the given retry (starting at 0) of the request.
+   * @throws RuntimeException if the request may not be retried anymore
+   */
+  public long nextDelay(final URI uri, final int retry, final long requestDeadline) {
+    // Exponential backoff with jitter so that parallel requests don't poll in lockstep
+    final long maxDelay = Math.min(maxDelayMillis, initialDelayMillis << Math.min(retry, 20));
+    final long delay = maxDelay / 2 + ThreadLocalRandom.current().nextLong(maxDelay / 2 + 1);
+
+    final long remaining = requestDeadline - System.nanoTime();
+    if (remaining < TimeUnit.MILLISECONDS.toNanos(delay)) {
+      throw new RuntimeException("Timed out waiting for cache of " + uri + " after " + retry + " retries");
+    }
+    if (remainingRetries.getAndDecrement() <= 0) {
+      throw new RuntimeException("Retry budget exhausted while waiting for cache of " + uri);
+    }
+    return delay;
+  }
+}
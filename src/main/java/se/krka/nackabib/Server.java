@@ -0,0 +1,178 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves the page, its history pages and the JSON API from the latest {@link Site} over HTTP.
+ * A new site replaces the old one in a single step, requests never wait for a render.
+ */
+public class Server {
+
+  private static final int THREADS = 4;
+
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+  private final AtomicReference<Site> site = new AtomicReference<>();
+
+  private Server(final HttpServer httpServer, final ExecutorService executor) {
+    this.httpServer = httpServer;
+    this.executor = executor;
+  }
+
+  /**
+   * @param address the address to listen on, or an empty string for all addresses
+   */
+  public static Server start(final String address, final int port) throws IOException {
+    final InetSocketAddress socketAddress = address.isEmpty()
+        ? new InetSocketAddress(port)
+        : new InetSocketAddress(address, port);
+    final HttpServer httpServer = HttpServer.create(socketAddress, 0);
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactoryBuilder()
+        .setNameFormat("http-%d")
+        .setDaemon(true)
+        .build());
+    final Server server = new Server(httpServer, executor);
+    httpServer.createContext("/", server::handle);
+    httpServer.setExecutor(executor);
+    httpServer.start();
+    System.out.println("Serving on http://" + (address.isEmpty() ? "localhost" : address) + ":" + port + "/");
+    return server;
+  }
+
+  /**
+   * Starts serving the new site. Unchanged resources keep their modification time.
+   */
+  public void publish(final Site.Builder builder) {
+    // Only the render thread publishes, so nothing can come in between get and set
+    site.set(builder.build(site.get()));
+  }
+
+  public void stop() {
+    httpServer.stop(1);
+    executor.shutdownNow();
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    try {
+      // The JDK server closes the connection after a response without a body (304, HEAD),
+      // unless the request body has been read to the end
+      exchange.getRequestBody().close();
+      final String method = exchange.getRequestMethod();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        sendText(exchange, 405, "Method not allowed");
+        return;
+      }
+      final Site current = site.get();
+      if (current == null) {
+        exchange.getResponseHeaders().set("Retry-After", "10");
+        sendText(exchange, 503, "Still reading the data, try again soon");
+        return;
+      }
+      final String path = exchange.getRequestURI().getPath();
+      final Site.Resource resource = current.get(path.equals("/") ? "index.html" : path.substring(1));
+      if (resource == null) {
+        sendText(exchange, 404, "Not found");
+        return;
+      }
+
+      final Headers headers = exchange.getResponseHeaders();
+      headers.set("Content-Type", resource.getContentType());
+      headers.set("ETag", resource.getEtag());
+      headers.set("Last-Modified", formatDate(resource.getLastModified()));
+      // Always ask if the page has changed, it's a cheap 304 when it hasn't
+      headers.set("Cache-Control", "no-cache");
+      headers.set("Vary", "Accept-Encoding");
+      if (isNotModified(exchange.getRequestHeaders(), resource)) {
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+
+      byte[] body = resource.getContent();
+      if (resource.getGzipped() != null && acceptsGzip(exchange.getRequestHeaders())) {
+        headers.set("Content-Encoding", "gzip");
+        body = resource.getGzipped();
+      }
+      if (method.equals("HEAD")) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static boolean isNotModified(final Headers request, final Site.Resource resource) {
+    // If-None-Match wins over If-Modified-Since when both are sent
+    final String ifNoneMatch = request.getFirst("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String etag : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+        if (etag.equals("*") || (etag.startsWith("W/") ? etag.substring(2) : etag).equals(resource.getEtag())) {
+          return true;
+        }
+      }
+      return false;
+    }
+    final String ifModifiedSince = request.getFirst("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      try {
+        final long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+            .toInstant().toEpochMilli();
+        return resource.getLastModified() <= since;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private static boolean acceptsGzip(final Headers request) {
+    final List<String> values = request.get("Accept-Encoding");
+    if (values == null) {
+      return false;
+    }
+    for (String value : values) {
+      for (String coding : Splitter.on(',').trimResults().split(value)) {
+        final List<String> parts = Splitter.on(';').trimResults().splitToList(coding);
+        if (parts.get(0).equals("gzip") && !parts.contains("q=0")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static String formatDate(final long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+  }
+
+  private static void sendText(final HttpExchange exchange, final int status, final String text) throws IOException {
+    final byte[] body = (text + "\n").getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Date;
+import java.util.Optional;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.cookie.ClientCookie;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the login cookies and url token of each account between runs, so that we don't have to
+ * log in again every time. The files are only readable by the owner since they grant access to the account.
+ */
+public class SessionStore {
+
+  private final File dir;
+
+  public SessionStore(final File baseDir) {
+    dir = new File(DataDir.getStateDir(baseDir), "sessions");
+  }
+
+  /**
+   * Restores the saved session into the cookie store.
+   *
+   * @return the url token of the session, or empty if there is no usable session.
+   */
+  public Optional<String> load(final String username, final BasicCookieStore cookieStore) {
+    final File file = getFile(username);
+    if (!file.isFile()) {
+      return Optional.empty();
+    }
+    try {
+      final JSONObject session = new JSONObject(FileUtils.readFileToString(file, Charsets.UTF_8));
+      final JSONArray cookies = session.getJSONArray("cookies");
+      final Date now = new Date();
+      for (Object o : cookies) {
+        final BasicClientCookie cookie = toCookie((JSONObject) o);
+        if (!cookie.isExpired(now)) {
+          cookieStore.addCookie(cookie);
+        }
+      }
+      return Optional.of(session.getString("urlToken"));
+    } catch (IOException | JSONException e) {
+      System.err.println("Ignoring unreadable session " + file + ": " + e);
+      return Optional.empty();
+    }
+  }
+
+  public void save(final String username, final BasicCookieStore cookieStore, final String urlToken)
+      throws IOException {
+    final JSONArray cookies = new JSONArray();
+    for (Cookie cookie : cookieStore.getCookies()) {
+      cookies.put(toJson(cookie));
+    }
+    final JSONObject session = new JSONObject();
+    session.put("urlToken", urlToken);
+    session.put("cookies", cookies);
+
+    createPrivateDir(dir);
+    final byte[] content = session.toString(2).getBytes(Charsets.UTF_8);
+    Util.writeAtomically(getFile(username), tmp -> {
+      // Only readable by the owner before the session is written to it
+      Files.createFile(tmp);
+      setOwnerOnly(tmp, "rw-------");
+      Files.write(tmp, content);
+    });
+  }
+
+  public void delete(final String username) {
+    FileUtils.deleteQuietly(getFile(username));
+  }
+
+  private File getFile(final String username) {
+    return new File(dir, username + ".json");
+  }
+
+  private static JSONObject toJson(final Cookie cookie) {
+    final JSONObject json = new JSONObject();
+    json.put("name", cookie.getName());
+    json.put("value", cookie.getValue());
+    json.put("domain", cookie.getDomain());
+    json.put("path", cookie.getPath());
+    json.put("secure", cookie.isSecure());
+    if (cookie.getExpiryDate() != null) {
+      json.put("expiry", cookie.getExpiryDate().getTime());
+    }
+    if (cookie instanceof ClientCookie && ((ClientCookie) cookie).containsAttribute(ClientCookie.DOMAIN_ATTR)) {
+      json.put("domainAttribute", ((ClientCookie) cookie).getAttribute(ClientCookie.DOMAIN_ATTR));
+    }
+    return json;
+  }
+
+  private static BasicClientCookie toCookie(final JSONObject json) {
+    final BasicClientCookie cookie = new BasicClientCookie(json.getString("name"), json.getString("value"));
+    cookie.setDomain(json.getString("domain"));
+    cookie.setPath(json.getString("path"));
+    cookie.setSecure(json.getBoolean("secure"));
+    if (json.has("expiry")) {
+      cookie.setExpiryDate(new Date(json.getLong("expiry")));
+    }
+    if (json.has("domainAttribute")) {
+      cookie.setAttribute(ClientCookie.DOMAIN_ATTR, json.getString("domainAttribute"));
+    }
+    return cookie;
+  }
+
+  private static void createPrivateDir(final File dir) throws IOException {
+    if (!dir.isDirectory()) {
+      FileUtils.forceMkdir(dir);
+      setOwnerOnly(dir.toPath(), "rwx------");
+    }
+  }
+
+  private static void setOwnerOnly(final Path path, final String permissions) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+    } catch (UnsupportedOperationException e) {
+      // Not a posix file system, fall back to the basic permissions
+      final File file = path.toFile();
+      file.setReadable(false, false);
+      file.setWritable(false, false);
+      file.setReadable(true, true);
+      file.setWritable(true, true);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package se.krka.nackabib;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Everything the {@link Server} serves after one render, by path. Never changes once created,
+ * so requests can read it while the next one is being rendered.
+ */
+public class Site {
+
+  public static final String HTML = "text/html; charset=utf-8";
+  public static final String JSON = "application/json; charset=utf-8";
+
+  // Smaller responses are not worth compressing
+  private static final int MIN_GZIP_SIZE = 256;
+
+  private final Map<String, Resource> resources;
+
+  private Site(final Map<String, Resource> resources) {
+    this.resources = resources;
+  }
+
+  /**
+   * @return the resource at the path, without a leading slash, or null if there is none
+   */
+  public Resource get(final String path) {
+    return resources.get(path);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private final ImmutableMap.Builder<String, byte[]> contents = ImmutableMap.builder();
+    private final ImmutableMap.Builder<String, String> contentTypes = ImmutableMap.builder();
+
+    private Builder() {
+    }
+
+    public Builder put(final String path, final String contentType, final byte[] content) {
+      contents.put(path, content);
+      contentTypes.put(path, contentType);
+      return this;
+    }
+
+    /**
+     * @param previous the site that is served now, or null. Resources that have not changed are taken from it,
+     *                 so that they keep their modification time and don't have to be compressed again.
+     */
+    public Site build(final Site previous) {
+      final long now = System.currentTimeMillis();
+      final Map<String, String> types = contentTypes.build();
+      final ImmutableMap.Builder<String, Resource> resources = ImmutableMap.builder();
+      for (Map.Entry<String, byte[]> entry : contents.build().entrySet()) {
+        final String contentType = types.get(entry.getKey());
+        final String etag = '"' + Hashing.sha1().hashBytes(entry.getValue()).toString().substring(0, 20) + '"';
+        final Resource old = previous == null ? null : previous.get(entry.getKey());
+        if (old != null && old.etag.equals(etag) && old.contentType.equals(contentType)) {
+          resources.put(entry.getKey(), old);
+        } else {
+          resources.put(entry.getKey(), new Resource(contentType, entry.getValue(), etag, now));
+        }
+      }
+      return new Site(resources.build());
+    }
+  }
+
+  public static class Resource {
+    private final String contentType;
+    private final byte[] content;
+    // null if compressing doesn't make it smaller
+    private final byte[] gzipped;
+    private final String etag;
+    // In whole seconds, the precision of Last-Modified
+    private final long lastModified;
+
+    private Resource(final String contentType, final byte[] content, final String etag, final long lastModified) {
+      this.contentType = contentType;
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified / 1000 * 1000;
+      final byte[] gzipped = content.length < MIN_GZIP_SIZE ? null : gzip(content);
+      this.gzipped = gzipped != null && gzipped.length < content.length ? gzipped : null;
+    }
+
+    private static byte[] gzip(final byte[] content) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+        gzip.write(content);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return out.toByteArray();
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+
+    public byte[] getGzipped() {
+      return gzipped;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Read access to the resources of one snapshot, regardless of how it is stored.
+ *
+ * A snapshot is either a plain directory with one subdirectory per user and one file per resource,
+ * a directory with only a manifest that maps user/resource to blobs in the {@link BlobStore},
+ * or a manifest with blobs in a monthly {@link Pack}.
+ */
+public class Snapshot {
+
+  public static final String MANIFEST = "manifest";
+
+  private final String name;
+  // null if the snapshot is in a pack
+  private final File dir;
+  private final BlobStore blobStore;
+  // null if the snapshot is a directory
+  private final Pack pack;
+  // user -> resource -> hash, or null if this is a plain directory. Read on first use, since most
+  // callers only look at the newest snapshots.
+  private final Supplier<SortedMap<String, SortedMap<String, String>>> manifest;
+
+  private Snapshot(final String name, final File dir, final BlobStore blobStore, final Pack pack) {
+    this.name = name;
+    this.dir = dir;
+    this.blobStore = blobStore;
+    this.pack = pack;
+    this.manifest = Suppliers.memoize(this::readManifest);
+  }
+
+  public static Snapshot open(final File dir) {
+    return new Snapshot(dir.getName(), dir, new BlobStore(dir.getAbsoluteFile().getParentFile()), null);
+  }
+
+  private SortedMap<String, SortedMap<String, String>> readManifest() {
+    try {
+      if (pack != null) {
+        return parseManifest(new String(pack.readManifest(name), Charsets.UTF_8));
+      }
+      final File manifestFile = new File(dir, MANIFEST);
+      if (!manifestFile.isFile()) {
+        return null;
+      }
+      return parseManifest(FileUtils.readFileToString(manifestFile, Charsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static SortedMap<String, SortedMap<String, String>> parseManifest(final String content) {
+    final SortedMap<String, SortedMap<String, String>> manifest = Maps.newTreeMap();
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(content)) {
+      final List<String> parts = Splitter.on(' ').splitToList(line);
+      final List<String> path = Splitter.on('/').splitToList(parts.get(0));
+      manifest.computeIfAbsent(path.get(0), key -> Maps.newTreeMap()).put(path.get(1), parts.get(1));
+    }
+    return manifest;
+  }
+
+  /**
+   * @return the snapshots in packs and directories, oldest first
+   */
+  public static List<Snapshot> openAll(final File baseDir) throws IOException {
+    final SortedMap<String, Snapshot> snapshots = Maps.newTreeMap();
+    final BlobStore blobStore = new BlobStore(baseDir);
+    for (Pack pack : Pack.openAll(baseDir)) {
+      for (String name : pack.getSnapshotNames()) {
+        snapshots.put(name, new Snapshot(name, null, blobStore, pack));
+      }
+    }
+    // A directory that is also in a pack is left over from an interrupted compaction, and has the same contents
+    for (File dir : DataDir.getDirectories(baseDir)) {
+      snapshots.put(dir.getName(), open(dir));
+    }
+    return ImmutableList.copyOf(snapshots.values());
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the directory of the snapshot, or null if it is in a pack
+   */
+  public File getDir() {
+    return dir;
+  }
+
+  public boolean isPacked() {
+    return pack != null;
+  }
+
+  public boolean hasManifest() {
+    return manifest.get() != null;
+  }
+
+  /**
+   * @return hash by resource by user, or null if this is a plain directory.
+   */
+  public SortedMap<String, SortedMap<String, String>> getManifest() {
+    return manifest.get();
+  }
+
+  /**
+   * @return the usernames in this snapshot, sorted
+   */
+  public Collection<String> getUsernames() {
+    final SortedMap<String, SortedMap<String, String>> manifest = this.manifest.get();
+    if (manifest != null) {
+      return manifest.keySet();
+    }
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return ImmutableList.of();
+    }
+    return Arrays.stream(children)
+        .filter(File::isDirectory)
+        .map(File::getName)
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return the resource names of the user, sorted
+   */
+  public Collection<String> getResources(final String username) {
+    final SortedMap<String, SortedMap<String, String>> manifest = this.manifest.get();
+    if (manifest != null) {
+      final SortedMap<String, String> resources = manifest.get(username);
+      return resources == null ? ImmutableList.of() : resources.keySet();
+    }
+    final File[] files = new File(dir, username).listFiles(File::isFile);
+    if (files == null) {
+      return ImmutableList.of();
+    }
+    return Arrays.stream(files)
+        .map(File::getName)
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return the file with the contents of the resource, or null if it does not exist or the snapshot is in a pack.
+   */
+  public File getFile(final String username, final String resource) {
+    if (pack != null) {
+      return null;
+    }
+    final String hash = getHash(username, resource);
+    if (hash != null) {
+      return blobStore.getFile(hash);
+    }
+    final File file = new File(new File(dir, username), resource);
+    return manifest.get() == null && file.isFile() ? file : null;
+  }
+
+  /**
+   * @return the contents of the resource, or null if it does not exist.
+   */
+  public InputStream openResource(final String username, final String resource) throws IOException {
+    if (pack != null) {
+      final String hash = getHash(username, resource);
+      return hash == null ? null : pack.openBlob(hash);
+    }
+    final File file = getFile(username, resource);
+    return file == null ? null : Files.newInputStream(file.toPath());
+  }
+
+  /**
+   * @return a reader for the resource, or null if it does not exist.
+   */
+  public JsonReader openReader(final String username, final String resource) throws IOException {
+    if (pack != null) {
+      final InputStream in = openResource(username, resource);
+      return in == null ? null : JsonReader.open(in);
+    }
+    final File file = getFile(username, resource);
+    return file == null ? null : JsonReader.open(file);
+  }
+
+  /**
+   * @return a key that is the same for two resources if they are known to have the same content,
+   * or null if the resource does not exist.
+   */
+  public String getContentKey(final String username, final String resource) {
+    final String hash = getHash(username, resource);
+    if (hash != null) {
+      return hash;
+    }
+    final File file = getFile(username, resource);
+    return file == null ? null : file.getPath();
+  }
+
+  private String getHash(final String username, final String resource) {
+    final SortedMap<String, SortedMap<String, String>> manifest = this.manifest.get();
+    if (manifest == null) {
+      return null;
+    }
+    final Map<String, String> resources = manifest.get(username);
+    return resources == null ? null : resources.get(resource);
+  }
+
+  /**
+   * @return the hashes of all blobs in the blob store this snapshot refers to.
+   */
+  public Collection<String> getBlobs() {
+    final SortedMap<String, SortedMap<String, String>> manifest = this.manifest.get();
+    if (manifest == null || pack != null) {
+      return ImmutableList.of();
+    }
+    return manifest.values().stream()
+        .flatMap(resources -> resources.values().stream())
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Moves all resources of a plain snapshot directory into the blob store
+   * and replaces them with a manifest.
+   */
+  public static void convertToManifest(final File dir, final BlobStore blobStore) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    final List<File> userDirs = Arrays.stream(dir.listFiles())
+        .filter(File::isDirectory)
+        .sorted()
+        .collect(Collectors.toList());
+    for (File userDir : userDirs) {
+      final List<File> files = Arrays.stream(userDir.listFiles())
+          .filter(File::isFile)
+          .sorted()
+          .collect(Collectors.toList());
+      for (File file : files) {
+        final String hash = blobStore.put(file);
+        sb.append(userDir.getName()).append('/').append(file.getName()).append(' ').append(hash).append('\n');
+      }
+    }
+    writeManifest(dir, sb.toString());
+    for (File userDir : userDirs) {
+      FileUtils.deleteDirectory(userDir);
+    }
+  }
+
+  /**
+   * Replaces the manifest of a snapshot.
+   */
+  public static void writeManifest(final File dir, final Map<String, ? extends Map<String, String>> manifest)
+      throws IOException {
+    writeManifest(dir, formatManifest(manifest));
+  }
+
+  /**
+   * @return the manifest as lines of user/resource hash, in the order of the map
+   */
+  public static String formatManifest(final Map<String, ? extends Map<String, String>> manifest) {
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, ? extends Map<String, String>> user : manifest.entrySet()) {
+      for (Map.Entry<String, String> resource : user.getValue().entrySet()) {
+        sb.append(user.getKey()).append('/').append(resource.getKey()).append(' ').append(resource.getValue())
+            .append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void writeManifest(final File dir, final String content) throws IOException {
+    Util.writeAtomically(new File(dir, MANIFEST), content.getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * Deletes the blobs that no snapshot refers to anymore.
+   */
+  public static void gc(final File baseDir) throws IOException {
+    final Set<String> live = Sets.newHashSet();
+    for (Snapshot snapshot : openAll(baseDir)) {
+      live.addAll(snapshot.getBlobs());
+    }
+    new BlobStore(baseDir).gc(live);
+  }
+}
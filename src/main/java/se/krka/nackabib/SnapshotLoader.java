@@ -0,0 +1,152 @@
+package se.krka.nackabib;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+/**
+ * Reads and parses json resources of many snapshots in parallel on a fork-join pool.
+ *
+ * Each file is read once, up front. The parsed values can then be looked up in any order,
+ * so callers that need a deterministic result still walk the snapshots and users sequentially.
+ */
+public class SnapshotLoader {
+
+  /**
+   * Parses the whole resource into JSONObject or JSONArray.
+   */
+  public static final Parser<Object> JSON = JsonReader::readValue;
+
+  /**
+   * Snapshots to load at once when going through many of them, so that they are not all in memory at once.
+   */
+  public static final int BATCH_SIZE = 32;
+
+  // snapshot/user/resource -> parsed value
+  private final Map<String, Object> values;
+
+  private SnapshotLoader(final Map<String, Object> values) {
+    this.values = values;
+  }
+
+  /**
+   * Reads the given resources of all users in the snapshots. Resources that don't exist are skipped.
+   *
+   * @param parsers parser by resource name
+   */
+  public static SnapshotLoader load(final Collection<Snapshot> snapshots, final Map<String, Parser<?>> parsers)
+      throws IOException {
+    return load(snapshots, parsers, (snapshot, username, resource) -> true);
+  }
+
+  /**
+   * Reads the given resources of the users in the snapshots that the filter accepts.
+   *
+   * @param parsers parser by resource name
+   */
+  public static SnapshotLoader load(final Collection<Snapshot> snapshots, final Map<String, Parser<?>> parsers,
+                                    final Filter filter) throws IOException {
+    final Map<String, Object> values = new ConcurrentHashMap<>();
+    try {
+      ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          ForkJoinTask.invokeAll(snapshots.stream()
+              .map(snapshot -> new SnapshotTask(snapshot, parsers, filter, values))
+              .collect(Collectors.toList()));
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return new SnapshotLoader(values);
+  }
+
+  /**
+   * @return the parsed resource, or null if it does not exist or was not loaded.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(final Snapshot snapshot, final String username, final String resource) {
+    return (T) values.get(key(snapshot, username, resource));
+  }
+
+  private static String key(final Snapshot snapshot, final String username, final String resource) {
+    return snapshot.getName() + "/" + username + "/" + resource;
+  }
+
+  public interface Parser<T> {
+    T parse(JsonReader reader) throws IOException;
+  }
+
+  public interface Filter {
+    boolean accept(Snapshot snapshot, String username, String resource);
+  }
+
+  private static class SnapshotTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Snapshot snapshot;
+    private final Map<String, Parser<?>> parsers;
+    private final Filter filter;
+    private final Map<String, Object> values;
+
+    private SnapshotTask(final Snapshot snapshot, final Map<String, Parser<?>> parsers, final Filter filter,
+                         final Map<String, Object> values) {
+      this.snapshot = snapshot;
+      this.parsers = parsers;
+      this.filter = filter;
+      this.values = values;
+    }
+
+    @Override
+    protected void compute() {
+      final List<UserTask> tasks = snapshot.getUsernames().stream()
+          .map(username -> new UserTask(snapshot, username, parsers, filter, values))
+          .collect(Collectors.toList());
+      ForkJoinTask.invokeAll(tasks);
+    }
+  }
+
+  private static class UserTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Snapshot snapshot;
+    private final String username;
+    private final Map<String, Parser<?>> parsers;
+    private final Filter filter;
+    private final Map<String, Object> values;
+
+    private UserTask(final Snapshot snapshot, final String username, final Map<String, Parser<?>> parsers,
+                     final Filter filter, final Map<String, Object> values) {
+      this.snapshot = snapshot;
+      this.username = username;
+      this.parsers = parsers;
+      this.filter = filter;
+      this.values = values;
+    }
+
+    @Override
+    protected void compute() {
+      for (Map.Entry<String, Parser<?>> entry : parsers.entrySet()) {
+        if (!filter.accept(snapshot, username, entry.getKey())) {
+          continue;
+        }
+        try (JsonReader reader = snapshot.openReader(username, entry.getKey())) {
+          if (reader != null) {
+            values.put(key(snapshot, username, entry.getKey()), entry.getValue().parse(reader));
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(new IOException(
+              "Could not read " + key(snapshot, username, entry.getKey()) + ": " + e.getMessage(), e));
+        }
+      }
+    }
+  }
+}
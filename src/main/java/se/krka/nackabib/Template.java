@@ -0,0 +1,152 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A piece of HTML with named slots, parsed once and then written straight to an {@link HtmlWriter}.
+ *
+ * A slot is written as {{name}} and is HTML escaped, which works both in text and in quoted attributes.
+ * {{name|js}} is escaped for use inside a quoted JavaScript string, {{name|url}} is encoded as a query
+ * parameter value and {{name|raw}} is written as it is.
+ *
+ * Templates are read from a resource file where each template starts with a line like
+ * <pre>&lt;!-- template loan-row(shortName, date) --&gt;</pre>
+ * and continues until the next such line.
+ */
+public class Template {
+
+  private static final Pattern HEADER = Pattern.compile("<!-- template ([\\w-]+)\\((.*)\\) -->");
+  private static final Pattern SLOT = Pattern.compile("\\{\\{(\\w+)(?:\\|(\\w+))?}}");
+
+  private enum Escaping {
+    HTML, JS, URL, RAW
+  }
+
+  private final String name;
+  private final List<String> parameters;
+  private final String source;
+  // literals[i] comes before slot i, the last literal after the last slot
+  private final char[][] literals;
+  // Index of the parameter for each slot
+  private final int[] slots;
+  private final Escaping[] escapings;
+
+  private Template(final String name, final List<String> parameters, final String source) {
+    this.name = name;
+    this.parameters = parameters;
+    this.source = source;
+    final List<char[]> literals = Lists.newArrayList();
+    final List<Integer> slots = Lists.newArrayList();
+    final List<Escaping> escapings = Lists.newArrayList();
+    final Matcher matcher = SLOT.matcher(source);
+    int end = 0;
+    while (matcher.find()) {
+      literals.add(source.substring(end, matcher.start()).toCharArray());
+      final int index = parameters.indexOf(matcher.group(1));
+      if (index < 0) {
+        throw new IllegalArgumentException("Unknown parameter " + matcher.group(1) + " in template " + name);
+      }
+      slots.add(index);
+      escapings.add(getEscaping(matcher.group(2)));
+      end = matcher.end();
+    }
+    literals.add(source.substring(end).toCharArray());
+    this.literals = literals.toArray(new char[0][]);
+    this.slots = slots.stream().mapToInt(Integer::intValue).toArray();
+    this.escapings = escapings.toArray(new Escaping[0]);
+  }
+
+  private Escaping getEscaping(final String escaping) {
+    if (escaping == null) {
+      return Escaping.HTML;
+    }
+    for (Escaping value : Escaping.values()) {
+      if (value.name().equalsIgnoreCase(escaping)) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Unknown escaping " + escaping + " in template " + name);
+  }
+
+  /**
+   * @return the templates in the resource by name
+   */
+  public static Map<String, Template> load(final String resource) {
+    final String content;
+    try {
+      content = Resources.toString(Resources.getResource(resource), Charsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    final ImmutableMap.Builder<String, Template> templates = ImmutableMap.builder();
+    final Matcher matcher = HEADER.matcher(content);
+    if (!matcher.find()) {
+      return templates.build();
+    }
+    while (true) {
+      final String name = matcher.group(1);
+      final List<String> parameters = ImmutableList.copyOf(
+          Splitter.on(',').trimResults().omitEmptyStrings().split(matcher.group(2)));
+      // The body starts on the line after the header
+      final int start = Math.min(content.length(), matcher.end() + 1);
+      final boolean more = matcher.find();
+      final int end = more ? matcher.start() : content.length();
+      templates.put(name, new Template(name, parameters, content.substring(start, end)));
+      if (!more) {
+        return templates.build();
+      }
+    }
+  }
+
+  /**
+   * @param values one value for each parameter, in the same order. Values that are not strings are written
+   *               with {@link String#valueOf(Object)}.
+   */
+  public void render(final HtmlWriter out, final Object... values) throws IOException {
+    if (values.length != parameters.size()) {
+      throw new IllegalArgumentException(
+          "Template " + name + " takes " + parameters + " but got " + values.length + " values");
+    }
+    for (int i = 0; i < slots.length; i++) {
+      out.write(literals[i]);
+      final Object value = values[slots[i]];
+      final String s = value instanceof String ? (String) value : String.valueOf(value);
+      switch (escapings[i]) {
+        case HTML:
+          out.writeHtml(s);
+          break;
+        case JS:
+          out.writeJs(s);
+          break;
+        case URL:
+          // Only letters, digits, % and .-*_+ are left, so it needs no HTML escaping
+          out.write(URLEncoder.encode(s, Charsets.UTF_8.name()));
+          break;
+        default:
+          out.write(s);
+      }
+    }
+    out.write(literals[slots.length]);
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  @Override
+  public String toString() {
+    return name + parameters;
+  }
+}
@@ -0,0 +1,403 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * {@link JsonReader} for JSON text, reading tokens straight from the bytes of a channel without
+ * decoding the parts that are skipped.
+ */
+public class TextJsonReader implements JsonReader {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private enum Scope {
+    EMPTY_DOCUMENT, NONEMPTY_DOCUMENT, EMPTY_ARRAY, NONEMPTY_ARRAY, EMPTY_OBJECT, DANGLING_NAME, NONEMPTY_OBJECT
+  }
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer buffer;
+  private long offset;
+  private Scope[] stack = new Scope[16];
+  private int stackSize;
+  private Token peeked;
+  private final StringBuilder sb = new StringBuilder();
+  private byte[] bytes = new byte[64];
+
+  public TextJsonReader(final ReadableByteChannel channel, final int bufferSize) {
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    buffer.flip();
+    push(Scope.EMPTY_DOCUMENT);
+  }
+
+  public static TextJsonReader open(final FileChannel channel) throws IOException {
+    // Most resources are small, so don't allocate a full buffer for them
+    return new TextJsonReader(channel, (int) Math.max(16, Math.min(BUFFER_SIZE, channel.size())));
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public Token peek() throws IOException {
+    if (peeked != null) {
+      return peeked;
+    }
+    final Scope scope = stack[stackSize - 1];
+    switch (scope) {
+      case EMPTY_DOCUMENT:
+        stack[stackSize - 1] = Scope.NONEMPTY_DOCUMENT;
+        return peeked = peekValue(nextNonWhitespace());
+      case NONEMPTY_DOCUMENT: {
+        final int c = nextNonWhitespace();
+        if (c != -1) {
+          throw syntaxError("Expected end of document");
+        }
+        return peeked = Token.END_DOCUMENT;
+      }
+      case EMPTY_ARRAY: {
+        stack[stackSize - 1] = Scope.NONEMPTY_ARRAY;
+        final int c = nextNonWhitespace();
+        return peeked = c == ']' ? Token.END_ARRAY : peekValue(c);
+      }
+      case NONEMPTY_ARRAY: {
+        final int c = nextNonWhitespace();
+        if (c == ']') {
+          return peeked = Token.END_ARRAY;
+        }
+        if (c != ',') {
+          throw syntaxError("Expected , or ]");
+        }
+        return peeked = peekValue(nextNonWhitespace());
+      }
+      case EMPTY_OBJECT:
+      case NONEMPTY_OBJECT: {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+          return peeked = Token.END_OBJECT;
+        }
+        if (scope == Scope.NONEMPTY_OBJECT) {
+          if (c != ',') {
+            throw syntaxError("Expected , or }");
+          }
+          c = nextNonWhitespace();
+        }
+        if (c != '"') {
+          throw syntaxError("Expected name");
+        }
+        return peeked = Token.NAME;
+      }
+      case DANGLING_NAME: {
+        if (nextNonWhitespace() != ':') {
+          throw syntaxError("Expected :");
+        }
+        stack[stackSize - 1] = Scope.NONEMPTY_OBJECT;
+        return peeked = peekValue(nextNonWhitespace());
+      }
+      default:
+        throw new IllegalStateException(scope.toString());
+    }
+  }
+
+  @Override
+  public boolean hasNext() throws IOException {
+    final Token token = peek();
+    return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+  }
+
+  @Override
+  public void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+    push(Scope.EMPTY_ARRAY);
+  }
+
+  @Override
+  public void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+    stackSize--;
+  }
+
+  @Override
+  public void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+    push(Scope.EMPTY_OBJECT);
+  }
+
+  @Override
+  public void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+    stackSize--;
+  }
+
+  @Override
+  public String nextName() throws IOException {
+    expect(Token.NAME);
+    stack[stackSize - 1] = Scope.DANGLING_NAME;
+    return readString();
+  }
+
+  @Override
+  public String nextString() throws IOException {
+    final Token token = peek();
+    if (token == Token.STRING) {
+      peeked = null;
+      return readString();
+    }
+    if (token == Token.NUMBER) {
+      peeked = null;
+      return readLiteral();
+    }
+    throw syntaxError("Expected a string but was " + token);
+  }
+
+  @Override
+  public boolean nextBoolean() throws IOException {
+    expect(Token.BOOLEAN);
+    final String literal = readLiteral();
+    if (literal.equals("true")) {
+      return true;
+    }
+    if (literal.equals("false")) {
+      return false;
+    }
+    throw syntaxError("Expected a boolean but was " + literal);
+  }
+
+  @Override
+  public int nextInt() throws IOException {
+    expect(Token.NUMBER);
+    final String literal = readLiteral();
+    try {
+      return Integer.parseInt(literal);
+    } catch (NumberFormatException e) {
+      throw syntaxError("Expected an int but was " + literal);
+    }
+  }
+
+  @Override
+  public void nextNull() throws IOException {
+    expect(Token.NULL);
+    if (!readLiteral().equals("null")) {
+      throw syntaxError("Expected null");
+    }
+  }
+
+  @Override
+  public void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_ARRAY:
+          beginArray();
+          depth++;
+          break;
+        case BEGIN_OBJECT:
+          beginObject();
+          depth++;
+          break;
+        case END_ARRAY:
+          endArray();
+          depth--;
+          break;
+        case END_OBJECT:
+          endObject();
+          depth--;
+          break;
+        case NAME:
+          nextName();
+          break;
+        case STRING:
+          peeked = null;
+          skipString();
+          break;
+        case NUMBER:
+        case BOOLEAN:
+        case NULL:
+          peeked = null;
+          readLiteral();
+          break;
+        default:
+          throw syntaxError("Unexpected end of document");
+      }
+    } while (depth > 0);
+  }
+
+  private Token peekValue(final int c) throws IOException {
+    switch (c) {
+      case '{':
+        return Token.BEGIN_OBJECT;
+      case '[':
+        return Token.BEGIN_ARRAY;
+      case '"':
+        return Token.STRING;
+      case 't':
+      case 'f':
+        buffer.position(buffer.position() - 1);
+        return Token.BOOLEAN;
+      case 'n':
+        buffer.position(buffer.position() - 1);
+        return Token.NULL;
+      case -1:
+        throw syntaxError("Unexpected end of document");
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          buffer.position(buffer.position() - 1);
+          return Token.NUMBER;
+        }
+        throw syntaxError("Unexpected character " + (char) c);
+    }
+  }
+
+  private void expect(final Token token) throws IOException {
+    final Token actual = peek();
+    if (actual != token) {
+      throw syntaxError("Expected " + token + " but was " + actual);
+    }
+    peeked = null;
+  }
+
+  private void push(final Scope scope) {
+    if (stackSize == stack.length) {
+      stack = Arrays.copyOf(stack, stackSize * 2);
+    }
+    stack[stackSize++] = scope;
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    while (true) {
+      final int c = read();
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      return -1;
+    }
+    return buffer.get() & 0xff;
+  }
+
+  private boolean fill() throws IOException {
+    offset += buffer.limit();
+    buffer.clear();
+    int n;
+    do {
+      n = channel.read(buffer);
+    } while (n == 0);
+    buffer.flip();
+    return n > 0;
+  }
+
+  /**
+   * Reads the rest of a string whose opening quote has already been read.
+   */
+  private String readString() throws IOException {
+    sb.setLength(0);
+    // Plain runs of bytes are decoded in one go, escapes one by one
+    int runLength = 0;
+    while (true) {
+      final int c = read();
+      if (c == -1) {
+        throw syntaxError("Unterminated string");
+      }
+      if (c == '"' || c == '\\') {
+        sb.append(new String(bytes, 0, runLength, Charsets.UTF_8));
+        runLength = 0;
+        if (c == '"') {
+          return sb.toString();
+        }
+        sb.append(readEscape());
+        continue;
+      }
+      if (runLength == bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      bytes[runLength++] = (byte) c;
+    }
+  }
+
+  private void skipString() throws IOException {
+    while (true) {
+      final int c = read();
+      if (c == -1) {
+        throw syntaxError("Unterminated string");
+      }
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        readEscape();
+      }
+    }
+  }
+
+  private char readEscape() throws IOException {
+    final int c = read();
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        return (char) c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u': {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          final int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw syntaxError("Invalid unicode escape");
+          }
+          value = value * 16 + digit;
+        }
+        return (char) value;
+      }
+      default:
+        throw syntaxError("Invalid escape");
+    }
+  }
+
+  private String readLiteral() throws IOException {
+    sb.setLength(0);
+    while (true) {
+      if (!buffer.hasRemaining() && !fill()) {
+        return sb.toString();
+      }
+      final byte c = buffer.get(buffer.position());
+      switch (c) {
+        case ' ':
+        case '\n':
+        case '\r':
+        case '\t':
+        case ',':
+        case ':':
+        case ']':
+        case '}':
+          return sb.toString();
+        default:
+          buffer.get();
+          sb.append((char) c);
+      }
+    }
+  }
+
+  private IOException syntaxError(final String message) {
+    return new IOException(message + " at byte " + (offset + buffer.position()));
+  }
+}
@@ -0,0 +1,134 @@
+package se.krka.nackabib;
+
+import com.google.common.io.BaseEncoding;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+
+/**
+ * SHA-1 hashes of files and directory trees, computed in parallel on a fork-join pool.
+ *
+ * A file hashes to the SHA-1 of its contents and a directory to the SHA-1 of the hex hashes
+ * of its children sorted by name, the same digests that Dedup has always used.
+ */
+public class TreeHasher {
+
+  // Smaller files are cheaper to read than to map
+  private static final long MAP_THRESHOLD = 64 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<ByteBuffer> BUFFER =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+  public static String hash(final File file) throws IOException {
+    return hashAll(Arrays.asList(file)).get(0);
+  }
+
+  /**
+   * @return the hashes of the files or directories, in the same order.
+   */
+  public static List<String> hashAll(final List<File> files) throws IOException {
+    try {
+      return ForkJoinPool.commonPool().invoke(new RecursiveTask<List<String>>() {
+        @Override
+        protected List<String> compute() {
+          return joinAll(ForkJoinTask.invokeAll(
+              files.stream().map(HashTask::new).collect(Collectors.toList())));
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static List<String> joinAll(final Collection<HashTask> tasks) {
+    return tasks.stream().map(ForkJoinTask::join).collect(Collectors.toList());
+  }
+
+  private static class HashTask extends RecursiveTask<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+
+    private HashTask(final File file) {
+      this.file = file;
+    }
+
+    @Override
+    protected String compute() {
+      try {
+        if (file.isDirectory()) {
+          return hashDirectory();
+        }
+        return hashFile(file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private String hashDirectory() throws IOException {
+      final File[] children = file.listFiles();
+      if (children == null) {
+        throw new IOException("Could not list " + file);
+      }
+      final List<HashTask> tasks = Arrays.stream(children)
+          .sorted(Comparator.comparing(File::getName))
+          .map(HashTask::new)
+          .collect(Collectors.toList());
+      final MessageDigest digest = newDigest();
+      for (String hash : joinAll(ForkJoinTask.invokeAll(tasks))) {
+        digest.update(hash.getBytes(StandardCharsets.US_ASCII));
+      }
+      return toHex(digest.digest());
+    }
+  }
+
+  private static String hashFile(final File file) throws IOException {
+    final MessageDigest digest = newDigest();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        // Map in chunks, a single mapping can't be larger than 2 GB
+        for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+          digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+              Math.min(Integer.MAX_VALUE, size - position)));
+        }
+      } else {
+        final ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        while (channel.read(buffer) != -1) {
+          buffer.flip();
+          digest.update(buffer);
+          buffer.clear();
+        }
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(final byte[] bytes) {
+    return BaseEncoding.base16().lowerCase().encode(bytes);
+  }
+}
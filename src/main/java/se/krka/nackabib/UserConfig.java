@@ -5,12 +5,22 @@ import com.typesafe.config.ConfigFactory;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class UserConfig {
 
+  private static final int DEFAULT_PARALLELISM = 4;
+  private static final int DEFAULT_REQUESTS_PER_ACCOUNT = 7;
+  private static final Duration DEFAULT_RETRY_INITIAL_DELAY = Duration.ofMillis(500);
+  private static final Duration DEFAULT_RETRY_MAX_DELAY = Duration.ofSeconds(30);
+  private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofMinutes(5);
+  private static final Duration DEFAULT_RUN_TIMEOUT = Duration.ofMinutes(20);
+  private static final int DEFAULT_RETRY_BUDGET = 500;
+  private static final Duration DEFAULT_DAEMON_RETRY_INTERVAL = Duration.ofMinutes(15);
+
   private final Config config;
 
   private final Map<String, User> usersByUsername;
@@ -31,6 +41,108 @@ public class UserConfig {
     return usersByUsername;
   }
 
+  /**
+   * Max number of accounts to download at the same time.
+   */
+  public int getParallelism() {
+    final int parallelism = getInt("download.parallelism", DEFAULT_PARALLELISM);
+    if (parallelism < 1) {
+      throw new RuntimeException("download.parallelism must be at least 1, was " + parallelism);
+    }
+    return parallelism;
+  }
+
+  /**
+   * Max number of concurrent requests (and pooled connections) for a single account.
+   */
+  public int getRequestsPerAccount() {
+    final int requests = getInt("download.requestsPerAccount", DEFAULT_REQUESTS_PER_ACCOUNT);
+    if (requests < 1) {
+      throw new RuntimeException("download.requestsPerAccount must be at least 1, was " + requests);
+    }
+    return requests;
+  }
+
+  /**
+   * If new snapshots should be stored as a manifest with the contents in the blob store.
+   */
+  public boolean useBlobStore() {
+    return !config.hasPath("storage.blobs") || config.getBoolean("storage.blobs");
+  }
+
+  /**
+   * If new resources should be stored in the compact {@link BinaryJson} format instead of JSON text.
+   */
+  public boolean useBinaryFormat() {
+    final String format = config.hasPath("storage.format") ? config.getString("storage.format") : "json";
+    switch (format) {
+      case "json":
+        return false;
+      case "binary":
+        return true;
+      default:
+        throw new RuntimeException("storage.format must be json or binary, was " + format);
+    }
+  }
+
+  /**
+   * Creates the retry policy for a new download run, the run deadline starts counting immediately.
+   */
+  public RetryPolicy newRetryPolicy() {
+    return new RetryPolicy(
+        getDuration("download.retry.initialDelay", DEFAULT_RETRY_INITIAL_DELAY),
+        getDuration("download.retry.maxDelay", DEFAULT_RETRY_MAX_DELAY),
+        getDuration("download.retry.requestTimeout", DEFAULT_REQUEST_TIMEOUT),
+        getDuration("download.retry.runTimeout", DEFAULT_RUN_TIMEOUT),
+        getInt("download.retry.budget", DEFAULT_RETRY_BUDGET));
+  }
+
+  /**
+   * Time between downloads in daemon mode.
+   */
+  public Duration getDaemonInterval() {
+    return getDuration("daemon.interval", DataDir.MIN_WAIT_TIME);
+  }
+
+  /**
+   * Time before trying again after a failed download in daemon mode.
+   */
+  public Duration getDaemonRetryInterval() {
+    return getDuration("daemon.retryInterval", DEFAULT_DAEMON_RETRY_INTERVAL);
+  }
+
+  /**
+   * Address the server listens on with --serve, or an empty string for all addresses.
+   * Only this machine by default, since the page contains the passwords.
+   */
+  public String getServerAddress() {
+    return getString("server.address", "127.0.0.1");
+  }
+
+  /**
+   * Urls of the library, the real one unless set.
+   */
+  public Endpoints getEndpoints() {
+    final Endpoints defaults = Endpoints.DEFAULT;
+    return new Endpoints(
+        getString("endpoints.api", defaults.getApi()),
+        getString("endpoints.loginPage", defaults.getLoginPage()),
+        getString("endpoints.auth", defaults.getAuth()),
+        getString("endpoints.returnUrl", defaults.getReturnUrl()));
+  }
+
+  private String getString(final String path, final String defaultValue) {
+    return config.hasPath(path) ? config.getString(path) : defaultValue;
+  }
+
+  private Duration getDuration(final String path, final Duration defaultValue) {
+    return config.hasPath(path) ? config.getDuration(path) : defaultValue;
+  }
+
+  private int getInt(final String path, final int defaultValue) {
+    return config.hasPath(path) ? config.getInt(path) : defaultValue;
+  }
+
   class User {
 
     private final String username;
@@ -1,60 +1,71 @@
 package se.krka.nackabib;
 
-import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import java.io.File;
-import java.time.Clock;
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.Temporal;
-import java.util.Comparator;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.apache.commons.io.FileUtils;
 
 public class Util {
 
-  public static final Clock CLOCK = Clock.systemUTC();
-  public static final ZoneId ZONE = CLOCK.getZone();
-  public static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME.withZone(ZONE);
-
-  public static String getCurrentTimestamp() {
-    return FORMATTER.format(CLOCK.instant());
+  public static String hash(final File file) throws IOException {
+    return Files.hash(file, Hashing.sha1()).toString();
   }
 
-  public static List<File> getDirectories(final File baseDir) {
-    final List<File> list = Lists.newArrayList();
-    for (File file : baseDir.listFiles()) {
-      if (file.isDirectory() && isTimestamp(file)) {
-        list.add(file);
-      }
+  /**
+   * Makes target a hard link to source, or a copy if the file system doesn't support links.
+   */
+  public static void linkOrCopy(final File source, final File target) throws IOException {
+    try {
+      java.nio.file.Files.createLink(target.toPath(), source.toPath());
+    } catch (UnsupportedOperationException | IOException e) {
+      FileUtils.copyFile(source, target);
     }
-    list.sort(Comparator.comparing(File::getName));
-    return list;
   }
 
-  public static Duration timeSinceLastUpdate(final File baseDir) {
-    final List<File> directories = getDirectories(baseDir);
-    if (directories.isEmpty()) {
-      return Duration.ofDays(100);
-    }
-    final File mostRecent = directories.get(directories.size() - 1);
-
-    final Temporal now = Clock.systemDefaultZone().instant();
-    final LocalDateTime latest = parseFilename(mostRecent);
-    return Duration.between(latest.toInstant(ZoneOffset.UTC), now);
+  /**
+   * Replaces the file with the given content in one step, see {@link #writeAtomically(File, TempFileWriter)}.
+   */
+  public static void writeAtomically(final File file, final byte[] content) throws IOException {
+    writeAtomically(file, tmp -> java.nio.file.Files.write(tmp, content));
   }
 
-  private static LocalDateTime parseFilename(final File dir) {
-    return LocalDateTime.parse(dir.getName(), FORMATTER);
+  /**
+   * Replaces the file with what the writer writes to a temporary file next to it, so that readers and
+   * a crash never see a partially written file. The temporary file does not exist when the writer is called,
+   * and if the writer doesn't create it the file is left as it is. It is removed if anything fails.
+   */
+  public static void writeAtomically(final File file, final TempFileWriter writer) throws IOException {
+    final File dir = file.getAbsoluteFile().getParentFile();
+    FileUtils.forceMkdir(dir);
+    final Path tmp = new File(dir, file.getName() + ".tmp").toPath();
+    // Left over from a crash
+    java.nio.file.Files.deleteIfExists(tmp);
+    try {
+      writer.write(tmp);
+      if (java.nio.file.Files.exists(tmp)) {
+        moveAtomically(tmp, file.toPath());
+      }
+    } finally {
+      java.nio.file.Files.deleteIfExists(tmp);
+    }
   }
 
-  private static boolean isTimestamp(final File dir) {
+  /**
+   * Moves source to target, replacing target, atomically if the file system supports it.
+   */
+  public static void moveAtomically(final Path source, final Path target) throws IOException {
     try {
-      return parseFilename(dir) != null;
-    } catch (Exception e) {
-      return false;
+      java.nio.file.Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      java.nio.file.Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
     }
   }
-}
 
+  public interface TempFileWriter {
+    void write(Path tmp) throws IOException;
+  }
+}
@@ -0,0 +1,118 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the ETag and Last-Modified headers of the most recently downloaded resources of each account,
+ * so the next run can ask the API if anything has changed since then.
+ */
+public class ValidatorStore {
+
+  private final File dir;
+
+  public ValidatorStore(final File baseDir) {
+    dir = new File(DataDir.getStateDir(baseDir), "validators");
+  }
+
+  /**
+   * @return validators by resource file name
+   */
+  public Map<String, Validator> load(final String username) {
+    final Map<String, Validator> validators = Maps.newHashMap();
+    final File file = getFile(username);
+    if (!file.isFile()) {
+      return validators;
+    }
+    try {
+      final JSONObject json = new JSONObject(FileUtils.readFileToString(file, Charsets.UTF_8));
+      for (String name : json.keySet()) {
+        final JSONObject validator = json.getJSONObject(name);
+        validators.put(name, new Validator(
+            validator.optString("etag", null),
+            validator.optString("lastModified", null),
+            validator.getString("hash")));
+      }
+    } catch (IOException | JSONException e) {
+      System.err.println("Ignoring unreadable validators " + file + ": " + e);
+    }
+    return validators;
+  }
+
+  public void save(final String username, final Map<String, Validator> validators) throws IOException {
+    final JSONObject json = new JSONObject();
+    for (Map.Entry<String, Validator> entry : validators.entrySet()) {
+      final Validator validator = entry.getValue();
+      final JSONObject value = new JSONObject();
+      value.putOpt("etag", validator.etag);
+      value.putOpt("lastModified", validator.lastModified);
+      value.put("hash", validator.hash);
+      json.put(entry.getKey(), value);
+    }
+    Util.writeAtomically(getFile(username), json.toString(2).getBytes(Charsets.UTF_8));
+  }
+
+  private File getFile(final String username) {
+    return new File(dir, username + ".json");
+  }
+
+  public static class Validator {
+    private final String etag;
+    private final String lastModified;
+    // Hash of the file the validators belong to, so they are only used together with that file
+    private final String hash;
+
+    private Validator(final String etag, final String lastModified, final String hash) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+
+    public static Validator of(final HttpResponse response, final String hash) {
+      return new Validator(getHeader(response, "ETag"), getHeader(response, "Last-Modified"), hash);
+    }
+
+    /**
+     * @return a copy with validators from a 304 response, which may have been updated by the server
+     */
+    public Validator update(final HttpResponse response) {
+      final String newEtag = getHeader(response, "ETag");
+      final String newLastModified = getHeader(response, "Last-Modified");
+      return new Validator(
+          newEtag != null ? newEtag : etag,
+          newLastModified != null ? newLastModified : lastModified,
+          hash);
+    }
+
+    public boolean isEmpty() {
+      return etag == null && lastModified == null;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public void addTo(final HttpGet request) {
+      if (etag != null) {
+        request.setHeader("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        request.setHeader("If-Modified-Since", lastModified);
+      }
+    }
+
+    private static String getHeader(final HttpResponse response, final String name) {
+      final Header header = response.getFirstHeader(name);
+      return header == null ? null : header.getValue();
+    }
+  }
+}
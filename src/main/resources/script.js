@@ -48,20 +48,79 @@ function login(user) {
 
   var form = document.createElement("form");
   form.method = "POST";
-  form.action = "https://auth.dvbib.se/";
+  form.action = authUrl;
   form.appendChild(input("Username", username));
   form.appendChild(input("Password", password));
-  form.appendChild(input("ReturnURL", "https://bib.nacka.se:443/"));
+  form.appendChild(input("ReturnURL", returnUrl));
   form.appendChild(input("RememberLogin", "true"));
   form.appendChild(input("UrlToken", urltoken));
   document.body.appendChild(form);
   form.submit();
 }
 
+var historyBody = document.getElementById("history");
+var historyVersions = historyBody == null ? [] : historyBody.dataset.versions.split(" ");
+// Pages are numbered from the oldest loans, so start with the last one
+var nextHistoryPage = historyVersions.length - 1;
+var loadingHistory = false;
+
+function cell(row, text, className) {
+  var td = document.createElement("td");
+  if (className) {
+    var span = document.createElement("span");
+    span.className = className;
+    span.textContent = text + "    ";
+    td.appendChild(span);
+  } else {
+    td.textContent = text;
+  }
+  row.appendChild(td);
+}
+
+// Loads history pages until the table reaches a screen below the visible part
+function loadHistory() {
+  if (loadingHistory || nextHistoryPage < 0) {
+    return;
+  }
+  if (historyBody.getBoundingClientRect().bottom > 2 * window.innerHeight) {
+    return;
+  }
+  loadingHistory = true;
+  var page = nextHistoryPage;
+  fetch(historyBody.dataset.url + page + ".json?v=" + historyVersions[page])
+    .then(function(response) {
+      if (!response.ok) {
+        throw new Error(response.statusText);
+      }
+      return response.json();
+    })
+    .then(function(loans) {
+      for (var i = 0; i < loans.length; ++i) {
+        var row = document.createElement("tr");
+        cell(row, loans[i][0]);
+        cell(row, loans[i][1], "color-past");
+        cell(row, loans[i][2]);
+        cell(row, loans[i][3]);
+        historyBody.appendChild(row);
+      }
+      nextHistoryPage = page - 1;
+      loadingHistory = false;
+      loadHistory();
+    })
+    .catch(function() {
+      // Try again on the next scroll
+      loadingHistory = false;
+    });
+}
+
 const loginAs = new URLSearchParams(window.location.search).get('login_as');
 if (loginAs != null) {
   document.getElementById("logging-in").className = "";
   login(loginAs)
 } else {
   document.getElementById("main-content").className = "";
+  if (historyBody != null) {
+    window.addEventListener("scroll", loadHistory);
+    loadHistory();
+  }
 }
@@ -0,0 +1,145 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+public class BinaryJsonTest extends TestCase {
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("binary-json").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  public void testScalars() throws IOException {
+    assertRoundTrip("[null,true,false,0,1,-1,\"\",\"text\"]");
+  }
+
+  public void testNestedContainers() throws IOException {
+    assertRoundTrip("{\"a\":{\"b\":[1,[2,{\"c\":[[[]]]}]],\"d\":{\"e\":{}}},\"f\":[{\"g\":null},{}]}");
+  }
+
+  public void testEmptyContainers() throws IOException {
+    assertRoundTrip("[]");
+    assertRoundTrip("{}");
+    assertRoundTrip("[[],{},[{}],{\"a\":[]}]");
+  }
+
+  public void testLongLimitsAreZigzagVarints() throws IOException {
+    for (long value : new long[]{Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1}) {
+      final String json = Long.toString(value);
+      final byte[] binary = encode(json);
+      // Magic, an empty string table, the tag and a varint of ten bytes
+      assertEquals(json, BinaryJson.MAGIC.length + 1 + 1 + 10, binary.length);
+      assertEquals(json, BinaryJson.TAG_INTEGER, binary[BinaryJson.MAGIC.length + 1]);
+      assertEquals(json, decode(binary));
+    }
+  }
+
+  public void testSmallIntegersAreShort() throws IOException {
+    // Zigzag keeps small negative numbers in one byte
+    assertEquals(BinaryJson.MAGIC.length + 1 + 1 + 1, encode("-64").length);
+    assertEquals(BinaryJson.MAGIC.length + 1 + 1 + 1, encode("63").length);
+    assertEquals(BinaryJson.MAGIC.length + 1 + 1 + 2, encode("64").length);
+  }
+
+  public void testOtherNumbersKeepTheirLiteral() throws IOException {
+    for (String literal : new String[]{"1.50", "0.0", "-0", "1e3", "-2.5E-3", "9223372036854775808",
+        "-9223372036854775809", "12345678901234567890123"}) {
+      final byte[] binary = encode(literal);
+      assertEquals(literal, BinaryJson.TAG_NUMBER, binary[binary.length - 2]);
+      assertEquals(literal, decode(binary));
+    }
+  }
+
+  public void testNonAsciiStrings() throws IOException {
+    final String json = "{\"f\u00f6rfattare\":\"G\u00f6ran \u00c5kesson\","
+        + "\"emoji\":\"\ud83d\udcda\",\"escapes\":\"tab\\t quote\\\" \\u0001 \\u2028\"}";
+    assertRoundTrip(json);
+    final JSONObject decoded = new JSONObject(decode(encode(json)));
+    assertEquals("G\u00f6ran \u00c5kesson", decoded.getString("f\u00f6rfattare"));
+    assertEquals("\ud83d\udcda", decoded.getString("emoji"));
+    assertEquals("tab\t quote\" \u0001 \u2028", decoded.getString("escapes"));
+  }
+
+  public void testRepeatedStringsAreStoredOnce() throws IOException {
+    final String json = "[{\"workAuthor\":\"Astrid\",\"workTitle\":\"Emil\"},"
+        + "{\"workAuthor\":\"Astrid\",\"workTitle\":\"Pippi\"},"
+        + "{\"workAuthor\":\"Astrid\",\"workTitle\":\"Emil\"}]";
+    final byte[] binary = encode(json);
+    // workAuthor, Astrid, workTitle, Emil and Pippi
+    assertEquals(5, binary[BinaryJson.MAGIC.length]);
+    assertRoundTrip(json);
+  }
+
+  public void testOpenFileDetectsFormat() throws IOException {
+    final String json = "{\"loans\":[{\"id\":\"1-2\",\"isRenewable\":true}]}";
+    final File text = new File(dir, "text");
+    final File binary = new File(dir, "binary");
+    FileUtils.writeStringToFile(text, json, Charsets.UTF_8);
+    FileUtils.writeByteArrayToFile(binary, encode(json));
+    final File shortText = new File(dir, "short");
+    FileUtils.writeStringToFile(shortText, "[]", Charsets.UTF_8);
+
+    assertEquals(formatText(json), format(JsonReader.open(text)));
+    assertEquals(formatText(json), format(JsonReader.open(binary)));
+    assertEquals(formatText("[]"), format(JsonReader.open(shortText)));
+  }
+
+  public void testOpenStreamDetectsFormat() throws IOException {
+    final String json = "{\"loans\":[{\"id\":\"1-2\",\"isRenewable\":true}]}";
+    final byte[] text = json.getBytes(Charsets.UTF_8);
+
+    assertEquals(formatText(json), format(JsonReader.open(new ByteArrayInputStream(text))));
+    assertEquals(formatText(json), format(JsonReader.open(new ByteArrayInputStream(encode(json)))));
+    assertEquals(formatText("[]"), format(JsonReader.open(new ByteArrayInputStream(new byte[]{'[', ']'}))));
+  }
+
+  private static void assertRoundTrip(final String json) throws IOException {
+    assertEquals(formatText(json), decode(encode(json)));
+  }
+
+  private static byte[] encode(final String json) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryJson.encode(() -> textReader(json), out);
+    return out.toByteArray();
+  }
+
+  private static String decode(final byte[] binary) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(binary);
+    assertTrue(BinaryJson.isMagic(buffer));
+    buffer.position(BinaryJson.MAGIC.length);
+    return format(new BinaryJsonReader(buffer));
+  }
+
+  private static String formatText(final String json) throws IOException {
+    return format(textReader(json));
+  }
+
+  private static JsonReader textReader(final String json) {
+    return new TextJsonReader(Channels.newChannel(new ByteArrayInputStream(json.getBytes(Charsets.UTF_8))), 16);
+  }
+
+  private static String format(final JsonReader reader) throws IOException {
+    try (JsonReader in = reader) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      JsonFormatter.format(in, out);
+      return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+  }
+}
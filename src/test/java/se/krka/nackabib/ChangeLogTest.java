@@ -0,0 +1,92 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+public class ChangeLogTest extends TestCase {
+
+  private static final String FIRST = "2018-01-01T00:00:00.000";
+  private static final String SECOND = "2018-01-01T04:00:00.000";
+  private static final String THIRD = "2018-01-01T08:00:00.000";
+
+  private File baseDir;
+  private File segment;
+  private ChangeLog log;
+
+  @Override
+  protected void setUp() throws IOException {
+    baseDir = Files.createTempDirectory("changelog").toFile();
+    segment = new File(baseDir, "state/changelog/00000000.log");
+    log = new ChangeLog(baseDir);
+    writeLoans(FIRST, "[{\"id\":\"a\"},{\"id\":\"b\"}]");
+    writeLoans(SECOND, "[{\"id\":\"b\",\"due\":1},{\"id\":\"c\"}]");
+    log.update(baseDir);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDir);
+  }
+
+  public void testUpdate() throws IOException {
+    assertEquals(SECOND, log.getHead());
+    assertEquals("[" + FIRST + " add a, " + FIRST + " add b, "
+        + SECOND + " modify b, " + SECOND + " add c, " + SECOND + " remove a]", replay(null).toString());
+  }
+
+  public void testHalfWrittenLineIsIgnored() throws IOException {
+    final List<String> events = replay(null);
+    final long complete = segment.length();
+    FileUtils.write(segment, "{\"snapshot\":\"" + THIRD + "\",\"us", Charsets.UTF_8, true);
+    assertEquals(events, replay(null));
+
+    final ChangeLog.Position position = log.replay(null, event -> { });
+    assertEquals("00000000.log:" + complete, position.toString());
+    assertTrue(replay(position).isEmpty());
+  }
+
+  public void testUpdateRemovesHalfWrittenLine() throws IOException {
+    FileUtils.write(segment, "{\"snapshot\":\"" + THIRD + "\",\"us", Charsets.UTF_8, true);
+    writeLoans(THIRD, "[{\"id\":\"c\"}]");
+    log.update(baseDir);
+    assertEquals(THIRD + " remove b", last(replay(null)));
+    assertTrue(FileUtils.readFileToString(segment, Charsets.UTF_8).endsWith("\"}\n"));
+    assertEquals(6, FileUtils.readLines(segment, Charsets.UTF_8).size());
+  }
+
+  public void testEventsNewerThanTheHeadAreNotAddedAgain() throws IOException {
+    final List<String> events = replay(null);
+    // A crash before the head was written
+    FileUtils.write(new File(baseDir, "state/changelog/head"), FIRST, Charsets.UTF_8);
+    log.update(baseDir);
+    assertEquals(events, replay(null));
+    // A crash before the head was written for the first time, after writing some of the events
+    final List<String> lines = FileUtils.readLines(segment, Charsets.UTF_8);
+    FileUtils.writeLines(segment, "UTF-8", lines.subList(0, 3), "\n");
+    FileUtils.write(new File(baseDir, "state/changelog/head"), "", Charsets.UTF_8);
+    log.update(baseDir);
+    assertEquals(events, replay(null));
+    assertEquals(SECOND, log.getHead());
+  }
+
+  private void writeLoans(final String snapshot, final String loans) throws IOException {
+    FileUtils.write(new File(baseDir, snapshot + "/user0/loans"), loans, Charsets.UTF_8);
+  }
+
+  private List<String> replay(final ChangeLog.Position from) throws IOException {
+    final List<String> events = new ArrayList<>();
+    log.replay(from, event -> events.add(
+        event.getSnapshot() + " " + event.getOp().name().toLowerCase() + " " + event.getId()));
+    return events;
+  }
+
+  private static String last(final List<String> list) {
+    return list.get(list.size() - 1);
+  }
+}
@@ -0,0 +1,118 @@
+package se.krka.nackabib;
+
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.io.StringWriter;
+import junit.framework.TestCase;
+
+public class HtmlWriterTest extends TestCase {
+
+  public void testHtmlEscapes() throws IOException {
+    assertEquals("&amp;", html("&"));
+    assertEquals("&lt;", html("<"));
+    assertEquals("&gt;", html(">"));
+    assertEquals("&quot;", html("\""));
+    assertEquals("&#39;", html("'"));
+    assertEquals("&lt;script&gt;alert(&quot;x&quot;)&lt;/script&gt;", html("<script>alert(\"x\")</script>"));
+    assertEquals("a &amp;amp; b", html("a &amp; b"));
+  }
+
+  public void testHtmlKeepsOtherCharacters() throws IOException {
+    assertEquals("", html(""));
+    assertEquals("G\u00f6ran \u00c5kesson \ud83d\udcda\n\t/=\\", html("G\u00f6ran \u00c5kesson \ud83d\udcda\n\t/=\\"));
+  }
+
+  public void testJsEscapes() throws IOException {
+    assertEquals("\\\"", js("\""));
+    assertEquals("\\'", js("'"));
+    assertEquals("\\\\", js("\\"));
+    assertEquals("\\u003c", js("<"));
+    assertEquals("\\u003e", js(">"));
+    assertEquals("\\u0026", js("&"));
+    assertEquals("\\u2028", js("\u2028"));
+    assertEquals("\\u2029", js("\u2029"));
+  }
+
+  public void testJsCannotEndTheScript() throws IOException {
+    assertEquals("\\u003c/script\\u003e\\u003cscript\\u003ealert(1)", js("</script><script>alert(1)"));
+    assertEquals("\\u003c!--", js("<!--"));
+  }
+
+  public void testJsEscapesControlCharacters() throws IOException {
+    for (char c = 0; c < ' '; c++) {
+      assertEquals(String.format("\\u%04x", (int) c), js(String.valueOf(c)));
+    }
+    assertEquals("a\\u000ab\\u000dc\\u0009d\\u0000", js("a\nb\rc\td\0"));
+    assertEquals("\u007f \u00f6 \ud83d\udcda /", js("\u007f \u00f6 \ud83d\udcda /"));
+  }
+
+  public void testLongRunsAreWrittenDirectly() throws IOException {
+    final String run = Strings.repeat("abcdefghij", 10);
+    final CountingWriter target = new CountingWriter();
+    try (HtmlWriter out = new HtmlWriter(target, 16)) {
+      out.write("<p>");
+      out.writeHtml(run + "&" + run);
+      out.writeJs(run + "\"" + run);
+      out.write(run.toCharArray());
+      out.write("</p>");
+    }
+    assertEquals("<p>" + run + "&amp;" + run + run + "\\\"" + run + run + "</p>", target.toString());
+    // Each run is longer than the buffer, so none of them were copied to it
+    assertEquals(5, target.longWrites);
+  }
+
+  public void testManyShortWritesFillTheBuffer() throws IOException {
+    final StringWriter target = new StringWriter();
+    final StringBuilder expected = new StringBuilder();
+    try (HtmlWriter out = new HtmlWriter(target, 7)) {
+      for (int i = 0; i < 100; i++) {
+        out.write('x');
+        out.writeHtml("<" + i);
+        out.writeJs("'" + i);
+        expected.append('x').append("&lt;").append(i).append("\\'").append(i);
+      }
+    }
+    assertEquals(expected.toString(), target.toString());
+  }
+
+  private static String html(final String s) throws IOException {
+    final StringWriter target = new StringWriter();
+    try (HtmlWriter out = new HtmlWriter(target, 4)) {
+      out.writeHtml(s);
+    }
+    return target.toString();
+  }
+
+  private static String js(final String s) throws IOException {
+    final StringWriter target = new StringWriter();
+    try (HtmlWriter out = new HtmlWriter(target, 4)) {
+      out.writeJs(s);
+    }
+    return target.toString();
+  }
+
+  /**
+   * Counts the writes of more than 16 characters, which only happen when the buffer is bypassed.
+   */
+  private static class CountingWriter extends StringWriter {
+    private int longWrites;
+
+    @Override
+    public void write(final char[] chars, final int offset, final int length) {
+      countWrite(length);
+      super.write(chars, offset, length);
+    }
+
+    @Override
+    public void write(final String s, final int offset, final int length) {
+      countWrite(length);
+      super.write(s, offset, length);
+    }
+
+    private void countWrite(final int length) {
+      if (length > 16) {
+        longWrites++;
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package se.krka.nackabib;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public class TemplateTest extends TestCase {
+
+  private final Map<String, Template> templates = Template.load("test-templates.html");
+
+  public void testLoad() {
+    assertEquals("[row, script, link, empty, unused]", templates.keySet().toString());
+    assertEquals("<hr>\n", templates.get("empty").getSource());
+  }
+
+  public void testHtmlSlots() throws IOException {
+    assertEquals("<tr title=\"&quot;&gt;&lt;script&gt;\"><td>&quot;&gt;&lt;script&gt;</td><td><b>1</b></td></tr>\n",
+        render("row", "\"><script>", "<b>1</b>"));
+  }
+
+  public void testJsSlots() throws IOException {
+    assertEquals("<script>var value = \"\\u003c/script\\u003e\\\"\\u2028\\u000a\";</script>\n",
+        render("script", "</script>\"\u2028\n"));
+  }
+
+  public void testUrlSlots() throws IOException {
+    assertEquals("<a href=\"?name=a%26b%23c%2Bd+e%3D%22%3E\">a&amp;b#c+d e=&quot;&gt;</a>\n",
+        render("link", "a&b#c+d e=\">"));
+    assertEquals("<a href=\"?name=G%C3%B6ran\">G\u00f6ran</a>\n", render("link", "G\u00f6ran"));
+  }
+
+  public void testValuesThatAreNotStrings() throws IOException {
+    assertEquals("<tr title=\"17\"><td>17</td><td>null</td></tr>\n", render("row", 17, null));
+  }
+
+  public void testUnusedParameters() throws IOException {
+    assertEquals("<p>2</p>\n", render("unused", "1", "2"));
+    assertEquals("<hr>\n", render("empty"));
+  }
+
+  public void testWrongArgumentCount() throws IOException {
+    try {
+      render("row", "only one");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("row"));
+    }
+    try {
+      render("empty", "extra");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("empty"));
+    }
+  }
+
+  public void testUnknownSlotFailsToLoad() {
+    try {
+      Template.load("test-templates-unknown-slot.html");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Unknown parameter date in template row", e.getMessage());
+    }
+  }
+
+  public void testUnknownEscapingFailsToLoad() {
+    try {
+      Template.load("test-templates-unknown-escaping.html");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Unknown escaping css in template row", e.getMessage());
+    }
+  }
+
+  private String render(final String name, final Object... values) throws IOException {
+    final StringWriter target = new StringWriter();
+    try (HtmlWriter out = new HtmlWriter(target)) {
+      templates.get(name).render(out, values);
+    }
+    return target.toString();
+  }
+}